@@ -16,14 +16,36 @@
 
 package org.lucidj.api.artdeployer;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
 import org.osgi.framework.Bundle;
 
 public interface ArtifactDeployer
 {
     Artifact installArtifact (String location) throws Exception;
     Artifact installArtifact (String location, boolean transient_start) throws Exception;
+    List<ArtifactResult> installArtifacts (Collection<String> locations);
+    List<ArtifactResult> installArtifacts (Collection<String> locations, boolean transient_start);
+
+    // Install mode is "copy", "reference" (used in place) or "snapshot"; null for the configured default
+    Artifact installArtifact (String location, boolean transient_start, String install_mode) throws Exception;
+    List<ArtifactResult> installArtifacts (Collection<String> locations, boolean transient_start, String install_mode);
     Artifact getArtifact     (Bundle bundle);
     Artifact getArtifact     (String location);
+
+    // Each artifact refreshed by its own engine, in one batch per engine; returns how many were updated
+    int      refreshArtifacts (Collection<String> locations);
+
+    // New revision installed and resolved beside the running one, switched over when ready
+    Artifact upgradeArtifact (String location) throws Exception;
+
+    // Same as above without blocking the caller; operations on one location keep their order
+    CompletionStage<Artifact> installArtifactAsync   (String location, boolean transient_start);
+    CompletionStage<Boolean>  updateArtifactAsync    (String location);
+    CompletionStage<Boolean>  uninstallArtifactAsync (String location);
+    CompletionStage<Artifact> upgradeArtifactAsync   (String location);
 }
 
 // EOF
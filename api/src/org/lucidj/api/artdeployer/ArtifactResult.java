@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.api.artdeployer;
+
+public final class ArtifactResult
+{
+    private final String   location;
+    private final Artifact artifact;
+    private final Exception error;
+
+    public ArtifactResult (String location, Artifact artifact, Exception error)
+    {
+        this.location = location;
+        this.artifact = artifact;
+        this.error = error;
+    }
+
+    public String getLocation ()
+    {
+        return (location);
+    }
+
+    public Artifact getArtifact ()
+    {
+        return (artifact);
+    }
+
+    public Exception getError ()
+    {
+        return (error);
+    }
+
+    public boolean isSuccess ()
+    {
+        return (error == null && artifact != null);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return ("ArtifactResult(" + location + ", " + (isSuccess ()? artifact: error) + ")");
+    }
+}
+
+// EOF
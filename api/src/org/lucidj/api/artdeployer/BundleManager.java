@@ -17,6 +17,7 @@
 package org.lucidj.api.artdeployer;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.Map;
 import java.util.Properties;
 import java.util.jar.Manifest;
@@ -33,13 +34,20 @@ public interface BundleManager
     Bundle     getBundleByDescription (String symbolic_name, Version version);
     Bundle     getBundleByLocation    (String location);
     Bundle     getBundleByProperty    (String property, String value);
+    Bundle[]   getBundlesByProperty   (String property, String value);
+    boolean    addIndexedProperty     (String property);
     Map<Bundle, Properties> getBundles ();
     Properties getBundleProperties    (Bundle bnd);
     String     getBundleProperty      (Bundle bnd, String key, String default_value);
     Bundle     installBundle          (String location, Properties properties) throws Exception;
+    boolean    isModified             (Bundle bnd);
     boolean    updateBundle           (Bundle bnd);
+    int        updateBundles          (Collection<Bundle> bundles);
     boolean    refreshBundle          (Bundle bnd);
     boolean    uninstallBundle        (Bundle bnd);
+    long       switchBundle           (Bundle from, Bundle to) throws Exception;
+    void       suspendResolution      ();
+    boolean    resumeResolution       (Collection<Bundle> bundles);
 }
 
 // EOF
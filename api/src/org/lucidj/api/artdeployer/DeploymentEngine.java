@@ -16,13 +16,35 @@
 
 package org.lucidj.api.artdeployer;
 
+import java.util.Collection;
 import java.util.Properties;
 
 public interface DeploymentEngine
 {
+    // Optional service properties (String, String[] or comma separated) declaring the
+    // artifacts an engine handles. Engines declaring none are asked about everything.
+    String   ENGINE_EXTENSIONS = "artdeployer.engine.extensions";
+    String   ENGINE_MIME_TYPES = "artdeployer.engine.mimetypes";
+
     String   getEngineName      ();
     int      compatibleArtifact (String location);
     Artifact install            (String location, Properties properties) throws Exception;
+
+    // Refreshes a set of this engine's artifacts in one go, returns how many were updated.
+    // Engines able to update their artifacts as a group should override this.
+    default int refreshArtifacts (Collection<Artifact> artifacts)
+    {
+        int refreshed = 0;
+
+        for (Artifact artifact: artifacts)
+        {
+            if (artifact.refresh ())
+            {
+                refreshed++;
+            }
+        }
+        return (refreshed);
+    }
 }
 
 // EOF
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.api.artdeployer;
+
+//
+// Latency summary of a timer. Percentiles are estimated from fixed histogram
+// buckets, so they are upper bounds with the precision of the bucket they fall in.
+//
+public final class TimerSummary
+{
+    private final long   count;
+    private final double total_ms;
+    private final double max_ms;
+    private final double p50_ms;
+    private final double p90_ms;
+    private final double p99_ms;
+
+    public TimerSummary (long count, double total_ms, double max_ms, double p50_ms, double p90_ms, double p99_ms)
+    {
+        this.count = count;
+        this.total_ms = total_ms;
+        this.max_ms = max_ms;
+        this.p50_ms = p50_ms;
+        this.p90_ms = p90_ms;
+        this.p99_ms = p99_ms;
+    }
+
+    public long getCount ()
+    {
+        return (count);
+    }
+
+    public double getTotalMillis ()
+    {
+        return (total_ms);
+    }
+
+    public double getMeanMillis ()
+    {
+        return ((count == 0)? 0: total_ms / count);
+    }
+
+    public double getMaxMillis ()
+    {
+        return (max_ms);
+    }
+
+    public double getP50Millis ()
+    {
+        return (p50_ms);
+    }
+
+    public double getP90Millis ()
+    {
+        return (p90_ms);
+    }
+
+    public double getP99Millis ()
+    {
+        return (p99_ms);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return (String.format ("TimerSummary(count=%d, mean=%.3fms, p50=%.3fms, p90=%.3fms, p99=%.3fms, max=%.3fms)",
+            count, getMeanMillis (), p50_ms, p90_ms, p99_ms, max_ms));
+    }
+}
+
+// EOF
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer.benchmarks;
+
+import org.lucidj.api.artdeployer.BundleManager;
+import org.lucidj.artdeployer.Constants;
+import org.lucidj.artdeployer.DefaultBundleManager;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Manifest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+
+//
+// Lookups on DefaultBundleManager with every generated jar installed and managed.
+//
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class BundleManagerBenchmark
+{
+    @Param ({ "100", "1000", "5000", "20000" })
+    public int bundle_count;
+
+    private StubDeployer deployer;
+    private DefaultBundleManager bundle_manager;
+    private File[] jars;
+    private String[] locations;
+
+    @Setup (Level.Trial)
+    public void setup ()
+        throws Exception
+    {
+        deployer = new StubDeployer ();
+        StubDeployer.generateJars (deployer.getDeployDir (), bundle_count);
+        deployer.start ();
+        bundle_manager = deployer.getBundleManager ();
+
+        jars = deployer.getDeployDir ().listFiles ();
+        Arrays.sort (jars);
+        locations = new String [jars.length];
+
+        for (int i = 0; i < jars.length; i++)
+        {
+            locations [i] = jars [i].toURI ().toString ();
+            Properties properties = new Properties ();
+            properties.setProperty (BundleManager.BND_SOURCE, locations [i]);
+            properties.setProperty (Constants.PROP_BUNDLE_START, Constants.BUNDLE_START_NORMAL);
+            bundle_manager.installBundle (locations [i], properties);
+        }
+    }
+
+    @TearDown (Level.Trial)
+    public void tearDown ()
+        throws Exception
+    {
+        deployer.stop ();
+    }
+
+    private int pick ()
+    {
+        return (ThreadLocalRandom.current ().nextInt (bundle_count));
+    }
+
+    @Benchmark
+    public Manifest getManifest ()
+    {
+        return (bundle_manager.getManifest (jars [pick ()]));
+    }
+
+    @Benchmark
+    public Bundle getBundleByDescription ()
+    {
+        int i = pick ();
+        return (bundle_manager.getBundleByDescription ("org.lucidj.bench.bundle" + i, new Version (1, 0, i)));
+    }
+
+    @Benchmark
+    public Bundle getBundleByDescriptionLatest ()
+    {
+        return (bundle_manager.getBundleByDescription ("org.lucidj.bench.bundle" + pick (), null));
+    }
+
+    @Benchmark
+    public Bundle getBundleByIndexedProperty ()
+    {
+        return (bundle_manager.getBundleByProperty (BundleManager.BND_SOURCE, locations [pick ()]));
+    }
+
+    @Benchmark
+    public Bundle getBundleByScannedProperty ()
+    {
+        // Not indexed, so it's the full walk over the managed bundles
+        return (bundle_manager.getBundleByProperty (Constants.PROP_LOCATION, locations [pick ()]));
+    }
+
+    @Benchmark
+    @OutputTimeUnit (TimeUnit.MICROSECONDS)
+    public Map<Bundle, Properties> getBundles ()
+    {
+        return (bundle_manager.getBundles ());
+    }
+}
+
+// EOF
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//
+// A full DeploymentScanner reconcile cycle (updates, removals and additions) over a
+// deploy directory where every jar is already installed, which is the steady state.
+//
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class DeploymentScannerBenchmark
+{
+    @Param ({ "100", "1000", "5000", "20000" })
+    public int bundle_count;
+
+    private StubDeployer deployer;
+
+    @Setup (Level.Trial)
+    public void setup ()
+        throws Exception
+    {
+        deployer = new StubDeployer ();
+        StubDeployer.generateJars (deployer.getDeployDir (), bundle_count);
+        deployer.start ();
+
+        // The first pass installs everything
+        deployer.reconcile ();
+
+        if (deployer.getFramework ().getBundleCount () != bundle_count + 1)
+        {
+            throw (new IllegalStateException ("Installed " + (deployer.getFramework ().getBundleCount () - 1)
+                + " bundles, expected " + bundle_count));
+        }
+    }
+
+    @TearDown (Level.Trial)
+    public void tearDown ()
+        throws Exception
+    {
+        deployer.stop ();
+    }
+
+    @Benchmark
+    public void reconcile ()
+        throws Exception
+    {
+        deployer.reconcile ();
+    }
+}
+
+// EOF
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer.benchmarks;
+
+import org.lucidj.api.artdeployer.DeploymentEngine;
+import org.lucidj.artdeployer.Constants;
+import org.lucidj.artdeployer.DefaultArtifactDeployer;
+import org.lucidj.artdeployer.DefaultBundleManager;
+import org.lucidj.artdeployer.DefaultDeploymentEngine;
+import org.lucidj.artdeployer.DefaultDeploymentMetrics;
+import org.lucidj.artdeployer.DeployDirectory;
+import org.lucidj.artdeployer.DeploymentScanner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+
+//
+// Wires the deployer components by hand, the way iPOJO would: fields injected and
+// lifecycle callbacks invoked through reflection, over a StubFramework.
+//
+public class StubDeployer
+{
+    private final Path work_dir;
+    private final File deploy_dir;
+    private final StubFramework framework;
+
+    private DefaultDeploymentMetrics metrics;
+    private DefaultBundleManager bundle_manager;
+    private DefaultDeploymentEngine deployment_engine;
+    private DefaultArtifactDeployer artifact_deployer;
+    private DeploymentScanner scanner;
+    private DeployDirectory deploy_directory;
+    private Method directory_reconcile;
+
+    public StubDeployer ()
+        throws IOException
+    {
+        work_dir = Files.createTempDirectory ("artdeployer-bench");
+        deploy_dir = work_dir.resolve ("deploy").toFile ();
+        deploy_dir.mkdirs ();
+
+        framework = new StubFramework (work_dir.resolve ("data").toFile ());
+        framework.setProperty (Constants.ARTIFACT_CACHE_DIR_PROPERTY, work_dir.resolve ("cache").toString ());
+        framework.setProperty (Constants.ARTIFACT_DEPLOY_DIR_PROPERTY, deploy_dir.getAbsolutePath ());
+
+        // The scan threads must never start, we drive reconcile() ourselves
+        framework.setProperty (Constants.ARTIFACT_STARTLEVEL_PROPERTY, "1000");
+        framework.setProperty (Constants.ARTIFACT_STABLE_MS_PROPERTY, "0");
+        framework.setProperty (Constants.ARTIFACT_START_THREADS_PROPERTY, "0");
+        framework.setProperty (Constants.ARTIFACT_LIFECYCLE_THREADS_PROPERTY, "0");
+    }
+
+    private static Field find_field (Class<?> type, String name)
+        throws NoSuchFieldException
+    {
+        for (Class<?> c = type; c != null; c = c.getSuperclass ())
+        {
+            try
+            {
+                Field field = c.getDeclaredField (name);
+                field.setAccessible (true);
+                return (field);
+            }
+            catch (NoSuchFieldException ignore) {};
+        }
+        throw (new NoSuchFieldException (type.getName () + "." + name));
+    }
+
+    private static void inject (Object target, String field_name, Object value)
+        throws Exception
+    {
+        find_field (target.getClass (), field_name).set (target, value);
+    }
+
+    private static Method find_method (Object target, String name, Class<?>... parameter_types)
+        throws Exception
+    {
+        Method method = target.getClass ().getDeclaredMethod (name, parameter_types);
+        method.setAccessible (true);
+        return (method);
+    }
+
+    public static void generateJars (File dir, int count)
+        throws IOException
+    {
+        for (int i = 0; i < count; i++)
+        {
+            Manifest mf = new Manifest ();
+            Attributes attrs = mf.getMainAttributes ();
+            attrs.put (Attributes.Name.MANIFEST_VERSION, "1.0");
+            attrs.putValue ("Bundle-ManifestVersion", "2");
+            attrs.putValue ("Bundle-SymbolicName", "org.lucidj.bench.bundle" + i);
+            attrs.putValue ("Bundle-Version", "1.0." + i);
+            attrs.putValue ("Export-Package", "org.lucidj.bench.bundle" + i + ";version=\"1.0." + i + "\"");
+
+            try (OutputStream os = new FileOutputStream (new File (dir, "bench-bundle-" + i + ".jar"));
+                 JarOutputStream jar = new JarOutputStream (os, mf))
+            {
+                jar.putNextEntry (new ZipEntry ("org/lucidj/bench/bundle" + i + "/payload.txt"));
+                jar.write (("payload " + i).getBytes ());
+                jar.closeEntry ();
+            }
+        }
+    }
+
+    public File getDeployDir ()
+    {
+        return (deploy_dir);
+    }
+
+    public StubFramework getFramework ()
+    {
+        return (framework);
+    }
+
+    public DefaultBundleManager getBundleManager ()
+    {
+        return (bundle_manager);
+    }
+
+    public DefaultArtifactDeployer getArtifactDeployer ()
+    {
+        return (artifact_deployer);
+    }
+
+    public void start ()
+        throws Exception
+    {
+        metrics = new DefaultDeploymentMetrics ();
+
+        bundle_manager = new DefaultBundleManager ();
+        inject (bundle_manager, "context", framework.getBundleContext ());
+        inject (bundle_manager, "metrics", metrics);
+        find_method (bundle_manager, "validate").invoke (bundle_manager);
+
+        deployment_engine = new DefaultDeploymentEngine ();
+        inject (deployment_engine, "bundleManager", bundle_manager);
+
+        artifact_deployer = new DefaultArtifactDeployer ();
+        inject (artifact_deployer, "context", framework.getBundleContext ());
+        inject (artifact_deployer, "bundleManager", bundle_manager);
+        inject (artifact_deployer, "metrics", metrics);
+        find_method (artifact_deployer, "validate").invoke (artifact_deployer);
+        find_method (artifact_deployer, "bindDeploymentEngine", DeploymentEngine.class, Map.class)
+            .invoke (artifact_deployer, deployment_engine,
+                Collections.singletonMap (DeploymentEngine.ENGINE_EXTENSIONS, "jar"));
+
+        scanner = new DeploymentScanner ();
+        inject (scanner, "context", framework.getBundleContext ());
+        inject (scanner, "artifactDeployer", artifact_deployer);
+        inject (scanner, "bundleManager", bundle_manager);
+        inject (scanner, "metrics", metrics);
+        find_method (scanner, "validate").invoke (scanner);
+
+        deploy_directory = scanner.getDirectories ().get (0);
+        inject (deploy_directory, "watched_dir_file", deploy_dir);
+        inject (deploy_directory, "watched_dir_uri", deploy_dir.toURI ().toString ());
+        directory_reconcile = find_method (deploy_directory, "reconcile");
+    }
+
+    public void reconcile ()
+        throws Exception
+    {
+        directory_reconcile.invoke (deploy_directory);
+    }
+
+    public void stop ()
+        throws Exception
+    {
+        if (bundle_manager != null)
+        {
+            find_method (bundle_manager, "invalidate").invoke (bundle_manager);
+        }
+
+        try (Stream<Path> paths = Files.walk (work_dir))
+        {
+            paths.sorted (Comparator.reverseOrder ()).map (Path::toFile).forEach (File::delete);
+        }
+    }
+}
+
+// EOF
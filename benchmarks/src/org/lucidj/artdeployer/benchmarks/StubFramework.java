@@ -0,0 +1,294 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.Attributes;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.Version;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+//
+// Just enough of an OSGi framework for the deployer components to run outside
+// one. Installed bundles go straight to ACTIVE and bundle events are delivered
+// synchronously; anything not implemented answers null, zero or false.
+//
+public class StubFramework
+{
+    private final Map<String, String> properties = new HashMap<> ();
+    private final Map<Long, Bundle> bundles_by_id = new ConcurrentHashMap<> ();
+    private final Map<String, Bundle> bundles_by_location = new ConcurrentHashMap<> ();
+    private final List<BundleListener> listeners = new CopyOnWriteArrayList<> ();
+    private final AtomicLong next_id = new AtomicLong ();
+    private final File data_dir;
+    private final BundleContext context;
+
+    public StubFramework (File data_dir)
+    {
+        this.data_dir = data_dir;
+        this.context = proxy (BundleContext.class, this::context_call);
+        new_bundle ("System Bundle", "org.lucidj.artdeployer.benchmarks.system", Version.emptyVersion);
+    }
+
+    @SuppressWarnings ("unchecked")
+    private static <T> T proxy (Class<T> type, InvocationHandler handler)
+    {
+        return ((T)Proxy.newProxyInstance (StubFramework.class.getClassLoader (), new Class<?>[] { type }, handler));
+    }
+
+    private static Object default_value (Method method)
+    {
+        Class<?> type = method.getReturnType ();
+
+        if (type == boolean.class)
+        {
+            return (false);
+        }
+        else if (type == int.class)
+        {
+            return (0);
+        }
+        else if (type == long.class)
+        {
+            return (0L);
+        }
+        return (null);
+    }
+
+    private static Object object_call (Object proxy, Method method, Object[] args, String name)
+    {
+        switch (method.getName ())
+        {
+            case "equals":   return (proxy == args [0]);
+            case "hashCode": return (System.identityHashCode (proxy));
+            case "toString": return (name);
+        }
+        return (default_value (method));
+    }
+
+    private static Object wiring_call (Object proxy, Method method, Object[] args, Bundle system_bundle)
+    {
+        if (method.getName ().equals ("refreshBundles") && args [1] != null)
+        {
+            // Nothing to rewire, done as soon as asked
+            for (FrameworkListener listener: (FrameworkListener[])args [1])
+            {
+                listener.frameworkEvent (new FrameworkEvent (FrameworkEvent.PACKAGES_REFRESHED, system_bundle, null));
+            }
+            return (null);
+        }
+        else if (method.getName ().equals ("resolveBundles"))
+        {
+            // Everything resolves
+            return (true);
+        }
+        return (object_call (proxy, method, args, "FrameworkWiring"));
+    }
+
+    public void setProperty (String key, String value)
+    {
+        properties.put (key, value);
+    }
+
+    public BundleContext getBundleContext ()
+    {
+        return (context);
+    }
+
+    public int getBundleCount ()
+    {
+        return (bundles_by_id.size ());
+    }
+
+    private void fire (int type, Bundle bundle)
+    {
+        BundleEvent event = new BundleEvent (type, bundle);
+
+        for (BundleListener listener: listeners)
+        {
+            listener.bundleChanged (event);
+        }
+    }
+
+    private Bundle new_bundle (String location, String symbolic_name, Version version)
+    {
+        long bundle_id = next_id.getAndIncrement ();
+        Dictionary<String, String> headers = new Hashtable<> ();
+        headers.put ("Bundle-SymbolicName", symbolic_name);
+        headers.put ("Bundle-Version", version.toString ());
+
+        Bundle[] self = new Bundle [1];
+        int[] state = { Bundle.ACTIVE };
+
+        self [0] = proxy (Bundle.class, (proxy, method, args) ->
+        {
+            switch (method.getName ())
+            {
+                case "getBundleId":     return (bundle_id);
+                case "getLocation":     return (location);
+                case "getSymbolicName": return (symbolic_name);
+                case "getVersion":      return (version);
+                case "getState":        return (state [0]);
+                case "getHeaders":      return (headers);
+                case "getBundleContext":return (context);
+                case "getLastModified": return (0L);
+                case "compareTo":       return (Long.compare (bundle_id, ((Bundle)args [0]).getBundleId ()));
+                case "start":           state [0] = Bundle.ACTIVE; return (null);
+                case "stop":            state [0] = Bundle.RESOLVED; return (null);
+                case "update":          fire (BundleEvent.UPDATED, self [0]); return (null);
+                case "uninstall":
+                {
+                    state [0] = Bundle.UNINSTALLED;
+                    bundles_by_id.remove (bundle_id);
+                    bundles_by_location.remove (location);
+                    fire (BundleEvent.UNINSTALLED, self [0]);
+                    return (null);
+                }
+                case "adapt":
+                {
+                    if (bundle_id == 0 && args [0] == FrameworkWiring.class)
+                    {
+                        return (proxy (FrameworkWiring.class, (p, m, a) -> wiring_call (p, m, a, self [0])));
+                    }
+                    else if (bundle_id == 0 && args [0] == FrameworkStartLevel.class)
+                    {
+                        return (proxy (FrameworkStartLevel.class, (p, m, a) ->
+                            m.getName ().equals ("getStartLevel")? 1: object_call (p, m, a, "FrameworkStartLevel")));
+                    }
+                    return (null);
+                }
+            }
+            return (object_call (proxy, method, args, symbolic_name + " [" + bundle_id + "]"));
+        });
+
+        bundles_by_id.put (bundle_id, self [0]);
+        bundles_by_location.put (location, self [0]);
+        return (self [0]);
+    }
+
+    private Bundle install_bundle (String location, InputStream input)
+        throws Exception
+    {
+        Bundle bundle = bundles_by_location.get (location);
+
+        if (bundle != null)
+        {
+            return (bundle);
+        }
+
+        String symbolic_name;
+        Version version;
+
+        // Installed by reference, the way Felix does it
+        String file_uri = location.startsWith ("reference:")? location.substring ("reference:".length ()): location;
+
+        try (JarInputStream jar = new JarInputStream ((input != null)? input:
+            new FileInputStream (new File (new URI (file_uri)))))
+        {
+            Manifest mf = jar.getManifest ();
+            Attributes attrs = mf.getMainAttributes ();
+            symbolic_name = attrs.getValue ("Bundle-SymbolicName");
+            version = Version.parseVersion (attrs.getValue ("Bundle-Version"));
+        }
+
+        bundle = new_bundle (location, symbolic_name, version);
+        fire (BundleEvent.INSTALLED, bundle);
+        return (bundle);
+    }
+
+    private Object context_call (Object proxy, Method method, Object[] args)
+        throws Exception
+    {
+        switch (method.getName ())
+        {
+            case "getProperty":
+            {
+                String value = properties.get ((String)args [0]);
+                return ((value != null)? value: System.getProperty ((String)args [0]));
+            }
+            case "getDataFile":
+            {
+                File file = new File (data_dir, (String)args [0]);
+                Files.createDirectories (data_dir.toPath ());
+                return (file);
+            }
+            case "addBundleListener":
+            {
+                listeners.add ((BundleListener)args [0]);
+                return (null);
+            }
+            case "removeBundleListener":
+            {
+                listeners.remove ((BundleListener)args [0]);
+                return (null);
+            }
+            case "getBundles":
+            {
+                return (new ArrayList<> (bundles_by_id.values ()).toArray (new Bundle [0]));
+            }
+            case "getBundle":
+            {
+                if (args == null || args.length == 0)
+                {
+                    return (bundles_by_id.get (0L));
+                }
+                else if (args [0] instanceof Long)
+                {
+                    return (bundles_by_id.get ((Long)args [0]));
+                }
+                return (bundles_by_location.get ((String)args [0]));
+            }
+            case "installBundle":
+            {
+                return (install_bundle ((String)args [0], (args.length > 1)? (InputStream)args [1]: null));
+            }
+            case "registerService":
+            {
+                return (proxy (ServiceRegistration.class, (p, m, a) -> object_call (p, m, a, "ServiceRegistration")));
+            }
+        }
+        return (object_call (proxy, method, args, "BundleContext"));
+    }
+}
+
+// EOF
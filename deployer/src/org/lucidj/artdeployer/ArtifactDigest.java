@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+//
+// SHA-256 of artifact contents. Both the digest and the read buffer are reused per
+// thread, so hashing a big jar doesn't churn the heap.
+//
+public class ArtifactDigest
+{
+    private final static Logger log = LoggerFactory.getLogger (ArtifactDigest.class);
+
+    private final static String ALGORITHM = "SHA-256";
+    private final static int BUFFER_SIZE = 64 * 1024;
+    private final static char[] HEX_DIGITS = "0123456789abcdef".toCharArray ();
+
+    private final static ThreadLocal<byte[]> buffer = ThreadLocal.withInitial (() -> new byte [BUFFER_SIZE]);
+    private final static ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial (() ->
+    {
+        try
+        {
+            return (MessageDigest.getInstance (ALGORITHM));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform is required to support SHA-256
+            throw (new IllegalStateException (e));
+        }
+    });
+
+    private static String to_hex (byte[] bytes)
+    {
+        char[] hex = new char [bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++)
+        {
+            hex [i * 2] = HEX_DIGITS [(bytes [i] >> 4) & 0xf];
+            hex [i * 2 + 1] = HEX_DIGITS [bytes [i] & 0xf];
+        }
+        return (new String (hex));
+    }
+
+    //
+    // Hex digest of a plain file, or null for directories and unreadable files.
+    //
+    public static String digest (File file)
+    {
+        if (!file.isFile ())
+        {
+            return (null);
+        }
+
+        MessageDigest md = digest.get ();
+        byte[] buf = buffer.get ();
+        md.reset ();
+
+        try (InputStream is = new FileInputStream (file))
+        {
+            int n;
+
+            while ((n = is.read (buf)) != -1)
+            {
+                md.update (buf, 0, n);
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn ("Unable to digest {}: {}", file, e.toString ());
+            return (null);
+        }
+        return (to_hex (md.digest ()));
+    }
+}
+
+// EOF
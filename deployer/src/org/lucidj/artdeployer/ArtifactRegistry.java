@@ -0,0 +1,264 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import org.lucidj.api.artdeployer.Artifact;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.SynchronousBundleListener;
+
+//
+// Deployed artifacts with their Artifact service registrations. Both lookups (by
+// location and by bundle) go through the same entries, which live exactly as long
+// as the main bundle: the service is unregistered and the entry dropped once the
+// bundle is uninstalled, and the service properties follow bundle updates. Several
+// locations may resolve to the same bundle; each keeps an entry of its own.
+//
+public class ArtifactRegistry implements SynchronousBundleListener
+{
+    private final static Logger log = LoggerFactory.getLogger (ArtifactRegistry.class);
+
+    private final Map<String, Entry> by_location = new ConcurrentHashMap<> ();
+    private final Map<Long, Map<String, Entry>> by_bundle_id = new ConcurrentHashMap<> ();
+    private BundleContext context;
+
+    public void open (BundleContext context)
+    {
+        this.context = context;
+        context.addBundleListener (this);
+    }
+
+    public synchronized void close (BundleContext context)
+    {
+        context.removeBundleListener (this);
+
+        for (Entry entry: new ArrayList<> (by_location.values ()))
+        {
+            remove_entry (entry);
+        }
+    }
+
+    private static Dictionary<String, Object> get_service_properties (Entry entry)
+    {
+        Bundle main_bundle = entry.artifact.getMainBundle ();
+        Dictionary<String, Object> props = new Hashtable<> ();
+        props.put ("@location", entry.location);
+        props.put ("@engine", entry.engine_name);
+        props.put ("@bundleid", main_bundle.getBundleId ());
+        props.put ("@bsn", main_bundle.getSymbolicName ());
+        props.put ("@bundle_start", entry.bundle_start);
+
+        if (entry.last_operation != null)
+        {
+            props.put ("@last_operation", entry.last_operation);
+            props.put ("@last_operation_result", entry.last_operation_result);
+            props.put ("@last_operation_ms", entry.last_operation_ms);
+        }
+
+        if (entry.switch_over_ms >= 0)
+        {
+            props.put ("@switch_over_ms", entry.switch_over_ms);
+        }
+        return (props);
+    }
+
+    private void remove_entry (Entry entry)
+    {
+        by_location.remove (entry.location, entry);
+        by_bundle_id.computeIfPresent (entry.bundle_id, (bundle_id, entries) ->
+        {
+            entries.remove (entry.location, entry);
+            return (entries.isEmpty ()? null: entries);
+        });
+
+        try
+        {
+            entry.registration.unregister ();
+        }
+        catch (IllegalStateException ignore) {}; // Already gone along with our own bundle
+    }
+
+    public synchronized void register (String location, Artifact artifact, String engine_name, String bundle_start)
+    {
+        Entry previous = by_location.get (location);
+
+        if (previous != null)
+        {
+            // Reinstalled over a stale entry; other locations on the same bundle stay
+            remove_entry (previous);
+        }
+
+        Entry entry = new Entry (location, artifact, engine_name, bundle_start);
+        entry.registration = context.registerService (Artifact.class, artifact, get_service_properties (entry));
+        by_location.put (location, entry);
+        by_bundle_id.computeIfAbsent (entry.bundle_id, bundle_id -> new ConcurrentHashMap<> ()).put (location, entry);
+
+        if (artifact.getMainBundle ().getState () == Bundle.UNINSTALLED)
+        {
+            // Lost the race against an uninstall
+            remove_entry (entry);
+        }
+    }
+
+    //
+    // Tells the outcome of an asynchronous operation to whoever tracks the Artifact service.
+    //
+    public void publish (String location, String operation, Throwable error)
+    {
+        publish (location, operation, error, -1);
+    }
+
+    //
+    // Same as above, also telling how long the artifact services were down on an upgrade.
+    //
+    public synchronized void publish (String location, String operation, Throwable error, long switch_over_ms)
+    {
+        Entry entry = by_location.get (location);
+
+        if (entry == null)
+        {
+            // Uninstalled, the service is already gone
+            return;
+        }
+
+        entry.last_operation = operation;
+        entry.last_operation_result = (error == null)? "success": "failed: " + error.getMessage ();
+        entry.last_operation_ms = System.currentTimeMillis ();
+
+        if (switch_over_ms >= 0)
+        {
+            entry.switch_over_ms = switch_over_ms;
+        }
+
+        try
+        {
+            entry.registration.setProperties (get_service_properties (entry));
+        }
+        catch (IllegalStateException ignore) {};
+    }
+
+    public String getBundleStart (String location)
+    {
+        Entry entry = by_location.get (location);
+        return ((entry == null)? null: entry.bundle_start);
+    }
+
+    public String getEngineName (String location)
+    {
+        Entry entry = by_location.get (location);
+        return ((entry == null)? null: entry.engine_name);
+    }
+
+    public Artifact get (String location)
+    {
+        Entry entry = by_location.get (location);
+        return ((entry == null)? null: entry.artifact);
+    }
+
+    public Artifact get (Bundle bundle)
+    {
+        Map<String, Entry> entries = by_bundle_id.get (bundle.getBundleId ());
+
+        if (entries != null)
+        {
+            // Whichever location, they all share the same bundle
+            for (Entry entry: entries.values ())
+            {
+                return (entry.artifact);
+            }
+        }
+        return (null);
+    }
+
+    public int size ()
+    {
+        return (by_location.size ());
+    }
+
+    @Override // SynchronousBundleListener
+    public synchronized void bundleChanged (BundleEvent bundleEvent)
+    {
+        Map<String, Entry> entries = by_bundle_id.get (bundleEvent.getBundle ().getBundleId ());
+
+        if (entries == null)
+        {
+            return;
+        }
+
+        switch (bundleEvent.getType ())
+        {
+            case BundleEvent.UNINSTALLED:
+            {
+                for (Entry uninstalled: new ArrayList<> (entries.values ()))
+                {
+                    log.debug ("Artifact {} uninstalled, unregistering", uninstalled.location);
+                    remove_entry (uninstalled);
+                }
+                break;
+            }
+            case BundleEvent.UPDATED:
+            {
+                for (Entry entry: entries.values ())
+                {
+                    try
+                    {
+                        // The symbolic name may have changed
+                        entry.registration.setProperties (get_service_properties (entry));
+                    }
+                    catch (IllegalStateException ignore) {};
+                }
+                break;
+            }
+        }
+    }
+
+    private static class Entry
+    {
+        final String location;
+        final Artifact artifact;
+        final String engine_name;
+        final String bundle_start;
+        final long bundle_id;
+        ServiceRegistration<Artifact> registration;
+        String last_operation;
+        String last_operation_result;
+        long last_operation_ms;
+        long switch_over_ms = -1;
+
+        Entry (String location, Artifact artifact, String engine_name, String bundle_start)
+        {
+            this.location = location;
+            this.artifact = artifact;
+            this.engine_name = engine_name;
+            this.bundle_start = bundle_start;
+            this.bundle_id = artifact.getMainBundle ().getBundleId ();
+        }
+    }
+}
+
+// EOF
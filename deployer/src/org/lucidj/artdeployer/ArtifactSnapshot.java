@@ -0,0 +1,143 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+//
+// Frozen copies of artifacts inside the artifact cache, for bundles installed by
+// reference that must not see the deploy directory change under them. A hard link
+// costs no I/O at all; across filesystems, or where links aren't supported, the
+// contents are copied with FileChannel.transferTo(), which lets the kernel move the
+// bytes without passing them through the heap. Either way the snapshot is built
+// aside and renamed into place, so the framework never reads a half written file.
+//
+// A hard link shares the contents with the artifact: it stays frozen as long as
+// artifacts are replaced (written aside and renamed, or deleted and copied anew)
+// rather than rewritten in place.
+//
+public class ArtifactSnapshot
+{
+    private final static Logger log = LoggerFactory.getLogger (ArtifactSnapshot.class);
+
+    private final File snapshot_dir;
+    private final LongAdder link_count = new LongAdder ();
+    private final LongAdder copy_count = new LongAdder ();
+
+    public ArtifactSnapshot (File snapshot_dir)
+    {
+        this.snapshot_dir = snapshot_dir;
+    }
+
+    //
+    // Same location, same snapshot file: the bundle location stays valid across updates.
+    //
+    public File getSnapshotFile (String location, File artifact)
+    {
+        UUID id = UUID.nameUUIDFromBytes (location.getBytes (StandardCharsets.UTF_8));
+        return (new File (snapshot_dir, id + "-" + artifact.getName ()));
+    }
+
+    private static void transfer (Path source, Path target)
+        throws IOException
+    {
+        try (FileChannel in = FileChannel.open (source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open (target, StandardOpenOption.WRITE,
+                 StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            long size = in.size ();
+            long position = 0;
+
+            // transferTo() may move less than asked for
+            while (position < size)
+            {
+                position += in.transferTo (position, size - position, out);
+            }
+        }
+    }
+
+    public File take (File artifact, File snapshot)
+        throws IOException
+    {
+        Path source = artifact.toPath ();
+        Path target = snapshot.toPath ();
+        Path temp = target.resolveSibling (target.getFileName () + ".tmp");
+
+        Files.createDirectories (snapshot_dir.toPath ());
+        Files.deleteIfExists (temp);
+
+        try
+        {
+            Files.createLink (temp, source);
+            link_count.increment ();
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            log.debug ("Unable to link {}, copying: {}", artifact, e.toString ());
+            transfer (source, temp);
+            Files.setLastModifiedTime (temp, Files.getLastModifiedTime (source));
+            copy_count.increment ();
+        }
+
+        try
+        {
+            Files.move (temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move (temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return (snapshot);
+    }
+
+    public void discard (File snapshot)
+    {
+        try
+        {
+            Files.deleteIfExists (snapshot.toPath ());
+        }
+        catch (IOException e)
+        {
+            log.warn ("Unable to remove snapshot {}: {}", snapshot, e.toString ());
+        }
+    }
+
+    public long getLinkCount ()
+    {
+        return (link_count.sum ());
+    }
+
+    public long getCopyCount ()
+    {
+        return (copy_count.sum ());
+    }
+}
+
+// EOF
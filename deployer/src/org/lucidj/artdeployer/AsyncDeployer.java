@@ -0,0 +1,235 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//
+// Runs deployer operations off the caller's thread. Operations on the same location
+// run one after the other in submission order, while different locations proceed in
+// parallel up to max_concurrency at a time.
+//
+// On Java 21+ every operation gets its own virtual thread and waits for a permit,
+// which costs next to nothing while blocked. Older runtimes get a platform thread
+// pool sized to the same limit. Cancelling a returned future before its operation
+// starts skips it altogether; once running, the operation goes to completion since
+// the framework calls involved can't be safely interrupted, but the result is dropped.
+// Closing works the same way: whatever hasn't started is failed, running operations
+// are given some time to finish and never interrupted.
+//
+public class AsyncDeployer
+{
+    private final static Logger log = LoggerFactory.getLogger (AsyncDeployer.class);
+
+    private final static long CLOSE_TIMEOUT_MS = 10000;
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final boolean virtual_threads;
+    private final Histogram wait_timer;
+    private final AtomicInteger running = new AtomicInteger ();
+    private volatile boolean closed;
+
+    // Completion of the last operation queued per location, successors chain on it
+    private final Map<String, CompletableFuture<Void>> tails = new ConcurrentHashMap<> ();
+    private final Set<CompletableFuture<?>> pending = ConcurrentHashMap.newKeySet ();
+
+    public AsyncDeployer (int max_concurrency, Histogram wait_timer)
+    {
+        int permit_count = Math.max (1, max_concurrency);
+        ExecutorService virtual_executor = new_virtual_executor ();
+
+        this.permits = new Semaphore (permit_count);
+        this.wait_timer = wait_timer;
+        this.virtual_threads = (virtual_executor != null);
+
+        if (virtual_executor != null)
+        {
+            executor = virtual_executor;
+        }
+        else
+        {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor (permit_count, permit_count,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<> (), new NamedThreadFactory ("AsyncDeployer"));
+            pool.allowCoreThreadTimeOut (true);
+            executor = pool;
+        }
+        log.info ("AsyncDeployer running up to {} operations on {} threads",
+            permit_count, virtual_threads? "virtual": "platform");
+    }
+
+    private static ExecutorService new_virtual_executor ()
+    {
+        try
+        {
+            // Java 21+, we still build for Java 8
+            Method factory = Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+            return ((ExecutorService)factory.invoke (null));
+        }
+        catch (Exception e)
+        {
+            return (null);
+        }
+    }
+
+    public boolean isVirtual ()
+    {
+        return (virtual_threads);
+    }
+
+    public int getPendingCount ()
+    {
+        return (pending.size ());
+    }
+
+    public int getRunningCount ()
+    {
+        return (running.get ());
+    }
+
+    private <T> void run_operation (CompletableFuture<T> result, Callable<T> operation,
+                                    long queued_ns, CompletableFuture<Void> done)
+    {
+        try
+        {
+            if (result.isDone ())
+            {
+                // Cancelled while queued
+                return;
+            }
+
+            permits.acquire ();
+            running.incrementAndGet ();
+
+            try
+            {
+                wait_timer.recordSince (queued_ns);
+
+                if (closed)
+                {
+                    // Not started yet, so not started at all
+                    result.completeExceptionally (new CancellationException ("Deployer stopped"));
+                }
+                else if (!result.isDone ())
+                {
+                    result.complete (operation.call ());
+                }
+            }
+            finally
+            {
+                running.decrementAndGet ();
+                permits.release ();
+            }
+        }
+        catch (Throwable t)
+        {
+            result.completeExceptionally (t);
+        }
+        finally
+        {
+            // Only now the next operation on this location may start
+            done.complete (null);
+        }
+    }
+
+    private void execute (Runnable task, CompletableFuture<?> result, CompletableFuture<Void> done)
+    {
+        try
+        {
+            executor.execute (task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            result.completeExceptionally (new IllegalStateException ("Deployer stopped", e));
+            done.complete (null);
+        }
+    }
+
+    public <T> CompletionStage<T> submit (String location, Callable<T> operation)
+    {
+        CompletableFuture<T> result = new CompletableFuture<> ();
+        CompletableFuture<Void> done = new CompletableFuture<> ();
+        long queued_ns = System.nanoTime ();
+        Runnable task = () -> run_operation (result, operation, queued_ns, done);
+
+        pending.add (result);
+        result.whenComplete ((value, error) -> pending.remove (result));
+
+        tails.compute (location, (key, tail) ->
+        {
+            if (tail == null)
+            {
+                execute (task, result, done);
+            }
+            else
+            {
+                tail.whenComplete ((value, error) -> execute (task, result, done));
+            }
+            return (done);
+        });
+
+        // Nothing left behind once the location goes idle
+        done.whenComplete ((value, error) -> tails.remove (location, done));
+        return (result);
+    }
+
+    public void close ()
+    {
+        closed = true;
+        executor.shutdown ();
+
+        try
+        {
+            if (!executor.awaitTermination (CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+            {
+                // Still left running on their own, their results go nowhere
+                log.warn ("{} deployer operations still running after {}ms", running.get (), CLOSE_TIMEOUT_MS);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread ().interrupt ();
+        }
+
+        for (CompletableFuture<?> result: new ArrayList<> (pending))
+        {
+            result.completeExceptionally (new CancellationException ("Deployer stopped"));
+        }
+        tails.clear ();
+    }
+}
+
+// EOF
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.Version;
+
+//
+// Symbolic name -> version -> bundle index over ALL framework bundles, not only
+// the ones we manage. It's a synchronous listener so the index is already current
+// when BundleContext.installBundle() returns. With org.osgi.framework.bsnversion=multiple
+// every bundle of a version is kept by id, and the oldest one still there is returned,
+// like a linear scan would.
+//
+public class BundleIndex implements SynchronousBundleListener
+{
+    private final Map<String, ConcurrentNavigableMap<Version, ConcurrentNavigableMap<Long, Bundle>>> by_name =
+        new ConcurrentHashMap<> ();
+    private final Map<Long, IndexKey> by_id = new ConcurrentHashMap<> ();
+
+    public void open (BundleContext context)
+    {
+        // Listen first, so nothing installed while we walk the bundles is lost
+        context.addBundleListener (this);
+
+        for (Bundle bundle: context.getBundles ())
+        {
+            if (bundle.getState () != Bundle.UNINSTALLED)
+            {
+                add_bundle (bundle);
+            }
+        }
+    }
+
+    public void close (BundleContext context)
+    {
+        context.removeBundleListener (this);
+        by_name.clear ();
+        by_id.clear ();
+    }
+
+    private void add_bundle (Bundle bundle)
+    {
+        String symbolic_name = bundle.getSymbolicName ();
+
+        if (symbolic_name == null)
+        {
+            // Pre-R4 bundles can't be found by description anyway
+            return;
+        }
+
+        IndexKey key = new IndexKey (symbolic_name, bundle.getVersion ());
+
+        by_name.compute (symbolic_name, (name, versions) ->
+        {
+            if (versions == null)
+            {
+                versions = new ConcurrentSkipListMap<> ();
+            }
+
+            versions.computeIfAbsent (key.version, v -> new ConcurrentSkipListMap<> ())
+                .put (bundle.getBundleId (), bundle);
+            return (versions);
+        });
+        by_id.put (bundle.getBundleId (), key);
+    }
+
+    private void remove_bundle (Bundle bundle)
+    {
+        IndexKey key = by_id.remove (bundle.getBundleId ());
+
+        if (key == null)
+        {
+            return;
+        }
+
+        by_name.computeIfPresent (key.symbolic_name, (name, versions) ->
+        {
+            ConcurrentNavigableMap<Long, Bundle> bundles = versions.get (key.version);
+
+            if (bundles != null)
+            {
+                bundles.remove (bundle.getBundleId ());
+
+                if (bundles.isEmpty ())
+                {
+                    versions.remove (key.version);
+                }
+            }
+            return (versions.isEmpty ()? null: versions);
+        });
+    }
+
+    @Override // SynchronousBundleListener
+    public void bundleChanged (BundleEvent bundleEvent)
+    {
+        Bundle bundle = bundleEvent.getBundle ();
+
+        switch (bundleEvent.getType ())
+        {
+            case BundleEvent.INSTALLED:
+            {
+                add_bundle (bundle);
+                break;
+            }
+            case BundleEvent.UPDATED:
+            {
+                // Symbolic name and version may both change on update
+                remove_bundle (bundle);
+                add_bundle (bundle);
+                break;
+            }
+            case BundleEvent.UNINSTALLED:
+            {
+                remove_bundle (bundle);
+                break;
+            }
+        }
+    }
+
+    private static Bundle get_oldest (ConcurrentNavigableMap<Long, Bundle> bundles)
+    {
+        Map.Entry<Long, Bundle> oldest = (bundles == null)? null: bundles.firstEntry ();
+        return (oldest == null? null: oldest.getValue ());
+    }
+
+    //
+    // Exact match when version is given, otherwise the highest version installed.
+    //
+    public Bundle getBundle (String symbolic_name, Version version)
+    {
+        ConcurrentNavigableMap<Version, ConcurrentNavigableMap<Long, Bundle>> versions = by_name.get (symbolic_name);
+
+        if (versions == null)
+        {
+            return (null);
+        }
+
+        if (version != null)
+        {
+            return (get_oldest (versions.get (version)));
+        }
+
+        // A version may be emptied under us while being removed
+        for (ConcurrentNavigableMap<Long, Bundle> bundles: versions.descendingMap ().values ())
+        {
+            Bundle latest = get_oldest (bundles);
+
+            if (latest != null)
+            {
+                return (latest);
+            }
+        }
+        return (null);
+    }
+
+    public int size ()
+    {
+        return (by_id.size ());
+    }
+
+    private static class IndexKey
+    {
+        final String symbolic_name;
+        final Version version;
+
+        IndexKey (String symbolic_name, Version version)
+        {
+            this.symbolic_name = symbolic_name;
+            this.version = version;
+        }
+    }
+}
+
+// EOF
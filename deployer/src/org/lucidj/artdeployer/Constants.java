@@ -20,20 +20,82 @@ public interface Constants
 {
     String ARTIFACT_DEPLOY_DIR_PROPERTY = "artdeployer.deploy.dir";
     String ARTIFACT_DEPLOY_DIR_VALUE    = "deploy";
+    String ARTIFACT_DEPLOY_DIRS_PROPERTY  = "artdeployer.deploy.dirs";     // Names, see DeploymentScanner
+    String ARTIFACT_DEPLOY_PREFIX         = "artdeployer.deploy.";
+    String ARTIFACT_DEPLOY_START_PROPERTY = "artdeployer.deploy.start";    // transient or normal (default)
     String ARTIFACT_CACHE_DIR_PROPERTY  = "artdeployer.cache.dir";
     String ARTIFACT_CACHE_DIR_VALUE     = "artdeployer-cache";
     String ARTIFACT_STARTLEVEL_PROPERTY = "artdeployer.startlevel";
     int    ARTIFACT_STARTLEVEL_VALUE    = -1;
+    String ARTIFACT_SCAN_MODE_PROPERTY  = "artdeployer.scan.mode";
+    String ARTIFACT_SCAN_MODE_VALUE     = "watch";
+    String ARTIFACT_POLL_MS_PROPERTY    = "artdeployer.scan.poll.ms";
+    int    ARTIFACT_POLL_MS_VALUE       = 1000;
+    String ARTIFACT_RECONCILE_MS_PROPERTY = "artdeployer.scan.reconcile.ms";
+    int    ARTIFACT_RECONCILE_MS_VALUE    = 60000;
+    String ARTIFACT_STABLE_MS_PROPERTY    = "artdeployer.scan.stable.ms";
+    int    ARTIFACT_STABLE_MS_VALUE       = 1000;
+    String ARTIFACT_RETRY_MS_PROPERTY     = "artdeployer.retry.ms";
+    int    ARTIFACT_RETRY_MS_VALUE        = 1000;
+    String ARTIFACT_RETRY_MAX_MS_PROPERTY = "artdeployer.retry.max.ms";
+    int    ARTIFACT_RETRY_MAX_MS_VALUE    = 5 * 60 * 1000;
+    String ARTIFACT_TROUBLED_MAX_PROPERTY = "artdeployer.troubled.max";
+    int    ARTIFACT_TROUBLED_MAX_VALUE    = 1024;
+    String ARTIFACT_MANIFEST_CACHE_PROPERTY = "artdeployer.manifest.cache.size";
+    int    ARTIFACT_MANIFEST_CACHE_VALUE    = 4096;
+    String ARTIFACT_PERSIST_MS_PROPERTY     = "artdeployer.persist.interval.ms";
+    int    ARTIFACT_PERSIST_MS_VALUE        = 500;
+    String ARTIFACT_PERSIST_BATCH_PROPERTY  = "artdeployer.persist.batch";
+    int    ARTIFACT_PERSIST_BATCH_VALUE     = 256;
+    String ARTIFACT_CACHE_STORE_PROPERTY    = "artdeployer.cache.store";
+    String ARTIFACT_JOURNAL_COMPACT_PROPERTY = "artdeployer.journal.compact.bytes";
+    int    ARTIFACT_JOURNAL_COMPACT_VALUE    = 1024 * 1024;
+    String ARTIFACT_CACHE_LOAD_THREADS_PROPERTY = "artdeployer.cache.load.threads";
+    int    ARTIFACT_CACHE_LOAD_THREADS_VALUE    = 0;    // One per core, up to 8
+    String ARTIFACT_START_THREADS_PROPERTY      = "artdeployer.start.threads";  // Default one per core, 0 starts inline
+    String ARTIFACT_LIFECYCLE_THREADS_PROPERTY  = "artdeployer.lifecycle.threads";  // Default one per core, 0 runs inline
+    String ARTIFACT_TREE_THREADS_PROPERTY       = "artdeployer.tree.threads";   // Exploded bundle walks
+    int    ARTIFACT_TREE_THREADS_VALUE          = 4;                            // At most, fewer on small boxes
+    String ARTIFACT_START_SETTLE_MS_PROPERTY    = "artdeployer.start.settle.ms";
+    int    ARTIFACT_START_SETTLE_MS_VALUE       = 50;
+    String ARTIFACT_REFRESH_TIMEOUT_MS_PROPERTY = "artdeployer.refresh.timeout.ms";
+    int    ARTIFACT_REFRESH_TIMEOUT_MS_VALUE    = 30000;
+    String ARTIFACT_CHANGE_DETECT_PROPERTY      = "artdeployer.change.detect";
+    String ARTIFACT_CHANGE_DETECT_VALUE         = "mtime";
+    String ARTIFACT_ASYNC_CONCURRENCY_PROPERTY  = "artdeployer.async.concurrency";
+    int    ARTIFACT_ASYNC_CONCURRENCY_VALUE     = 8;
+    String ARTIFACT_INSTALL_MODE_PROPERTY       = "artdeployer.install.mode";   // Also per deploy directory
+    String ARTIFACT_INSTALL_MODE_VALUE          = "copy";
+    String ARTIFACT_SNAPSHOT_DIR_VALUE          = "snapshots";                  // Inside the cache dir
 
     String PROP_DEPLOYMENT_ENGINE  = ".Artifact-Deployment-Engine";
     String PROP_LOCATION           = ".Artifact-Location";
     String PROP_LAST_MODIFIED      = ".Artifact-Last-Modified";
+    String PROP_SIZE               = ".Artifact-Size";
+    String PROP_DIGEST             = ".Artifact-Digest";
+    String PROP_TREE               = ".Artifact-Tree";
     String PROP_BUNDLE_STATE       = ".Artifact-Bundle-State";
     String PROP_BUNDLE_STATE_HUMAN = ".Artifact-Bundle-State-Human";
     String PROP_BUNDLE_START       = ".Artifact-Bundle-Start";
+    String PROP_STAGED             = ".Artifact-Staged";
+    String PROP_INSTALL_MODE       = ".Artifact-Install-Mode";
+    String PROP_SNAPSHOT           = ".Artifact-Snapshot";
 
     String BUNDLE_START_TRANSIENT  = "transient";
     String BUNDLE_START_NORMAL     = "normal";
+
+    String SCAN_MODE_WATCH         = "watch";
+    String SCAN_MODE_POLL          = "poll";
+
+    String CACHE_STORE_FILES       = "files";
+    String CACHE_STORE_JOURNAL     = "journal";
+
+    String CHANGE_DETECT_MTIME     = "mtime";
+    String CHANGE_DETECT_DIGEST    = "digest";
+
+    String INSTALL_MODE_COPY       = "copy";        // The framework copies into its own storage
+    String INSTALL_MODE_REFERENCE  = "reference";   // The artifact is used in place
+    String INSTALL_MODE_SNAPSHOT   = "snapshot";    // A hard link or copy in our cache is used in place
 }
 
 // EOF
@@ -18,6 +18,7 @@ package org.lucidj.artdeployer;
 
 import org.lucidj.api.artdeployer.Artifact;
 import org.lucidj.api.artdeployer.ArtifactDeployer;
+import org.lucidj.api.artdeployer.ArtifactResult;
 import org.lucidj.api.artdeployer.BundleManager;
 import org.lucidj.api.artdeployer.DeploymentEngine;
 import org.slf4j.Logger;
@@ -25,11 +26,16 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.net.URI;
-import java.util.Dictionary;
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.UUID;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -39,6 +45,7 @@ import org.apache.felix.ipojo.annotations.Context;
 import org.apache.felix.ipojo.annotations.Instantiate;
 import org.apache.felix.ipojo.annotations.Invalidate;
 import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Requires;
 import org.apache.felix.ipojo.annotations.Unbind;
 import org.apache.felix.ipojo.annotations.Validate;
 
@@ -52,9 +59,19 @@ public class DefaultArtifactDeployer implements ArtifactDeployer
     @Context
     private BundleContext context;
 
-    private Map<String, DeploymentEngine> deployment_engines = new ConcurrentHashMap<> ();
-    private Map<Bundle, Artifact> bundle_to_instance = new ConcurrentHashMap<> (); // TODO: REMOVE THIS
-    private Map<String, Artifact> location_to_instance = new ConcurrentHashMap<>();
+    @Requires
+    private BundleManager bundleManager;
+
+    @Requires
+    private MetricsRecorder metrics;
+
+    private EngineSelector engine_selector = new EngineSelector ();
+    private ArtifactRegistry artifact_registry = new ArtifactRegistry ();
+    private AsyncDeployer async_deployer;
+    private Histogram upgrade_gap_timer;
+    private LongAdder upgrade_fallbacks;
+    private LongAdder upgrade_rollbacks;
+    private String default_install_mode;
 
     private File get_valid_file (String location)
     {
@@ -77,25 +94,33 @@ public class DefaultArtifactDeployer implements ArtifactDeployer
         return (null);
     }
 
-    private DeploymentEngine find_deployment_engine (String location)
+    private String get_install_mode (String install_mode)
     {
-        DeploymentEngine found_engine = null;
-        int level, found_level = 0;
+        if (install_mode == null)
+        {
+            return (default_install_mode);
+        }
 
-        for (DeploymentEngine engine: deployment_engines.values ())
+        switch (install_mode.trim ().toLowerCase ())
         {
-            if ((level = engine.compatibleArtifact (location)) > found_level)
-            {
-                found_engine = engine;
-                found_level = level;
-            }
+            case Constants.INSTALL_MODE_COPY:      return (Constants.INSTALL_MODE_COPY);
+            case Constants.INSTALL_MODE_REFERENCE: return (Constants.INSTALL_MODE_REFERENCE);
+            case Constants.INSTALL_MODE_SNAPSHOT:  return (Constants.INSTALL_MODE_SNAPSHOT);
         }
-        return (found_engine);
+        log.warn ("Unknown install mode {}, using {}", install_mode, Constants.INSTALL_MODE_COPY);
+        return (Constants.INSTALL_MODE_COPY);
     }
 
     @Override // ArtifactDeployer
     public Artifact installArtifact (String location, boolean start_transient)
         throws Exception
+    {
+        return (installArtifact (location, start_transient, null));
+    }
+
+    @Override // ArtifactDeployer
+    public Artifact installArtifact (String location, boolean start_transient, String install_mode)
+        throws Exception
     {
         File bundle_file = get_valid_file (location);
 
@@ -104,7 +129,7 @@ public class DefaultArtifactDeployer implements ArtifactDeployer
             throw (new Exception ("Invalid artifact: " + location));
         }
 
-        DeploymentEngine deployment_engine = find_deployment_engine (location);
+        DeploymentEngine deployment_engine = engine_selector.getEngine (location, bundle_file);
 
         if (deployment_engine == null)
         {
@@ -117,20 +142,14 @@ public class DefaultArtifactDeployer implements ArtifactDeployer
         properties.setProperty (Constants.PROP_DEPLOYMENT_ENGINE, deployment_engine.getEngineName ());
         properties.setProperty (Constants.PROP_BUNDLE_START,
             start_transient? Constants.BUNDLE_START_TRANSIENT: Constants.BUNDLE_START_NORMAL);
+        properties.setProperty (Constants.PROP_INSTALL_MODE, get_install_mode (install_mode));
 
         // Install bundle!
         Artifact new_deploy = deployment_engine.install (location, properties);
-        bundle_to_instance.put (new_deploy.getMainBundle (), new_deploy);
-        location_to_instance.put (location, new_deploy);
-
-        // Register the bundle controller
-        Dictionary<String, Object> props = new Hashtable<>();
-        props.put ("@location", location);
-        props.put ("@engine", deployment_engine.getEngineName ());
-        props.put ("@bundleid", new_deploy.getMainBundle ().getBundleId ());
-        props.put ("@bsn", new_deploy.getMainBundle ().getSymbolicName ());
-        props.put ("@bundle_start", properties.getProperty (Constants.PROP_BUNDLE_START));
-        context.registerService (Artifact.class, new_deploy, props);
+
+        // Register the bundle controller, it goes away with the bundle
+        artifact_registry.register (location, new_deploy, deployment_engine.getEngineName (),
+            properties.getProperty (Constants.PROP_BUNDLE_START));
         return (new_deploy);
     }
 
@@ -141,42 +160,306 @@ public class DefaultArtifactDeployer implements ArtifactDeployer
         return (installArtifact (location, false));
     }
 
+    @Override // ArtifactDeployer
+    public List<ArtifactResult> installArtifacts (Collection<String> locations, boolean start_transient)
+    {
+        return (installArtifacts (locations, start_transient, null));
+    }
+
+    @Override // ArtifactDeployer
+    public List<ArtifactResult> installArtifacts (Collection<String> locations, boolean start_transient,
+        String install_mode)
+    {
+        List<ArtifactResult> results = new ArrayList<> (locations.size ());
+        List<Bundle> installed_bundles = new ArrayList<> (locations.size ());
+
+        // Install everything first, then let the framework resolve the whole set at once
+        bundleManager.suspendResolution ();
+
+        try
+        {
+            for (String location: locations)
+            {
+                try
+                {
+                    Artifact artifact = installArtifact (location, start_transient, install_mode);
+                    Bundle main_bundle = artifact.getMainBundle ();
+
+                    if (main_bundle != null && main_bundle.getState () == Bundle.INSTALLED)
+                    {
+                        installed_bundles.add (main_bundle);
+                    }
+                    results.add (new ArtifactResult (location, artifact, null));
+                }
+                catch (Exception e)
+                {
+                    results.add (new ArtifactResult (location, null, e));
+                }
+            }
+        }
+        finally
+        {
+            bundleManager.resumeResolution (installed_bundles);
+        }
+        return (results);
+    }
+
+    @Override // ArtifactDeployer
+    public List<ArtifactResult> installArtifacts (Collection<String> locations)
+    {
+        return (installArtifacts (locations, false));
+    }
+
     @Override // ArtifactDeployer
     public Artifact getArtifact (Bundle bundle)
     {
-        return (bundle_to_instance.get (bundle));
+        return (artifact_registry.get (bundle));
     }
 
     @Override // ArtifactDeployer
     public Artifact getArtifact (String location)
     {
-        return (location_to_instance.get (location));
+        return (artifact_registry.get (location));
+    }
+
+    @Override // ArtifactDeployer
+    public int refreshArtifacts (Collection<String> locations)
+    {
+        Map<DeploymentEngine, List<Artifact>> by_engine = new LinkedHashMap<> ();
+        int refreshed = 0;
+
+        for (String location: locations)
+        {
+            Artifact artifact = artifact_registry.get (location);
+
+            if (artifact == null)
+            {
+                continue;
+            }
+
+            DeploymentEngine deployment_engine =
+                engine_selector.getEngineByName (artifact_registry.getEngineName (location));
+
+            if (deployment_engine != null)
+            {
+                // Each engine gets the chance to update its artifacts as a group
+                by_engine.computeIfAbsent (deployment_engine, engine -> new ArrayList<> ()).add (artifact);
+            }
+            else if (artifact.refresh ())
+            {
+                // The engine is gone, but the artifact may still know how to refresh itself
+                refreshed++;
+            }
+        }
+
+        for (Map.Entry<DeploymentEngine, List<Artifact>> batch: by_engine.entrySet ())
+        {
+            refreshed += batch.getKey ().refreshArtifacts (batch.getValue ());
+        }
+        return (refreshed);
+    }
+
+    private Artifact upgrade_in_place (String location, Artifact artifact)
+        throws Exception
+    {
+        upgrade_fallbacks.increment ();
+        long start_time = System.nanoTime ();
+
+        // The services are down for the whole update and restart
+        if (!artifact.update ())
+        {
+            Exception error = new Exception ("Update failed: " + location);
+            artifact_registry.publish (location, "upgrade", error);
+            throw (error);
+        }
+
+        long gap_ms = TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - start_time);
+        upgrade_gap_timer.recordSince (start_time);
+        artifact_registry.publish (location, "upgrade", null, gap_ms);
+        log.info ("Artifact {} upgraded in place, services down for {}ms", location, gap_ms);
+        return (artifact);
+    }
+
+    @Override // ArtifactDeployer
+    public Artifact upgradeArtifact (String location)
+        throws Exception
+    {
+        Artifact artifact = get_installed_artifact (location);
+        Bundle running_bundle = artifact.getMainBundle ();
+        File bundle_file = get_valid_file (location);
+
+        if (bundle_file == null)
+        {
+            throw (new Exception ("Invalid artifact: " + location));
+        }
+
+        if (bundle_file.isDirectory ()
+            || !Constants.INSTALL_MODE_COPY.equals (bundleManager.getBundleProperty (running_bundle,
+                Constants.PROP_INSTALL_MODE, Constants.INSTALL_MODE_COPY)))
+        {
+            // Nothing we could install a second copy from, or used in place anyway
+            return (upgrade_in_place (location, artifact));
+        }
+
+        DeploymentEngine deployment_engine = engine_selector.getEngine (location, bundle_file);
+
+        if (deployment_engine == null)
+        {
+            throw (new Exception ("Deployer service not found for: " + location));
+        }
+
+        String bundle_start = artifact_registry.getBundleStart (location);
+        Properties properties = new Properties ();
+        properties.setProperty (BundleManager.BND_SOURCE, location);
+        properties.setProperty (Constants.PROP_DEPLOYMENT_ENGINE, deployment_engine.getEngineName ());
+        properties.setProperty (Constants.PROP_BUNDLE_START,
+            (bundle_start != null)? bundle_start: Constants.BUNDLE_START_NORMAL);
+        properties.setProperty (Constants.PROP_STAGED, "true");
+
+        // Framework locations must be unique, also across restarts: the revision is told apart by the fragment
+        String staged_location = location + "#staged-" + UUID.randomUUID ();
+        Artifact staged_artifact = deployment_engine.install (staged_location, properties);
+        Bundle staged_bundle = staged_artifact.getMainBundle ();
+
+        if (staged_bundle == null || staged_bundle.equals (running_bundle))
+        {
+            // Same symbolic name and version, the framework won't take both
+            log.info ("Artifact {} can't be staged beside {}, upgrading in place", location, running_bundle);
+            return (upgrade_in_place (location, artifact));
+        }
+
+        long switch_over_ns;
+
+        try
+        {
+            switch_over_ns = bundleManager.switchBundle (running_bundle, staged_bundle);
+        }
+        catch (Exception e)
+        {
+            // The running revision is back in service
+            upgrade_rollbacks.increment ();
+            artifact_registry.publish (location, "upgrade", e);
+            throw (new Exception ("Upgrade rolled back: " + location, e));
+        }
+
+        if (switch_over_ns < 0)
+        {
+            return (upgrade_in_place (location, artifact));
+        }
+
+        upgrade_gap_timer.record (switch_over_ns);
+        artifact_registry.register (location, staged_artifact, deployment_engine.getEngineName (),
+            properties.getProperty (Constants.PROP_BUNDLE_START));
+        artifact_registry.publish (location, "upgrade", null, TimeUnit.NANOSECONDS.toMillis (switch_over_ns));
+        return (staged_artifact);
+    }
+
+    @Override // ArtifactDeployer
+    public CompletionStage<Artifact> upgradeArtifactAsync (String location)
+    {
+        return (async_deployer.submit (location, () -> upgradeArtifact (location)));
+    }
+
+    private Artifact get_installed_artifact (String location)
+        throws Exception
+    {
+        Artifact artifact = artifact_registry.get (location);
+
+        if (artifact == null)
+        {
+            throw (new Exception ("Artifact not installed: " + location));
+        }
+        return (artifact);
+    }
+
+    @Override // ArtifactDeployer
+    public CompletionStage<Artifact> installArtifactAsync (String location, boolean transient_start)
+    {
+        return (async_deployer.submit (location, () ->
+        {
+            Artifact artifact = installArtifact (location, transient_start);
+            artifact_registry.publish (location, "install", null);
+            return (artifact);
+        }));
+    }
+
+    @Override // ArtifactDeployer
+    public CompletionStage<Boolean> updateArtifactAsync (String location)
+    {
+        return (async_deployer.submit (location, () ->
+        {
+            boolean updated = get_installed_artifact (location).update ();
+            artifact_registry.publish (location, "update",
+                updated? null: new Exception ("Update failed: " + location));
+            return (updated);
+        }));
+    }
+
+    @Override // ArtifactDeployer
+    public CompletionStage<Boolean> uninstallArtifactAsync (String location)
+    {
+        // Completion shows up as the Artifact service going away
+        return (async_deployer.submit (location, () -> get_installed_artifact (location).uninstall ()));
+    }
+
+    private int get_int_property (String property, int default_value)
+    {
+        String value = context.getProperty (property);
+
+        try
+        {
+            return ((value == null)? default_value: Integer.parseInt (value.trim ()));
+        }
+        catch (NumberFormatException e)
+        {
+            log.warn ("Invalid value for {}: {}", property, value);
+            return (default_value);
+        }
     }
 
     @Bind (aggregate=true, optional=true, specification = DeploymentEngine.class)
-    private void bindDeploymentEngine (DeploymentEngine engine)
+    private void bindDeploymentEngine (DeploymentEngine engine, Map<String, Object> service_properties)
     {
         log.info ("Adding deployment engine: {}", engine.getEngineName ());
-        deployment_engines.put (engine.getEngineName (), engine);
+        engine_selector.addEngine (engine, service_properties,
+            metrics.getTimer ("engine.compatible." + engine.getEngineName ()));
     }
 
     @Unbind
     private void unbindDeploymentEngine (DeploymentEngine engine)
     {
         log.info ("Removing deployment engine: {}", engine.getEngineName ());
-        deployment_engines.remove (engine.getEngineName ());
+        engine_selector.removeEngine (engine);
     }
 
     @Validate
     private void validate ()
     {
+        artifact_registry.open (context);
+
+        // What the framework installs from, unless told otherwise per directory or artifact
+        String install_mode = context.getProperty (Constants.ARTIFACT_INSTALL_MODE_PROPERTY);
+        default_install_mode = (install_mode == null)?
+            Constants.ARTIFACT_INSTALL_MODE_VALUE: get_install_mode (install_mode);
+        async_deployer = new AsyncDeployer (
+            get_int_property (Constants.ARTIFACT_ASYNC_CONCURRENCY_PROPERTY, Constants.ARTIFACT_ASYNC_CONCURRENCY_VALUE),
+            metrics.getTimer ("artifact.async.queue-wait"));
+        upgrade_gap_timer = metrics.getTimer ("artifact.upgrade.services-down");
+        upgrade_fallbacks = metrics.getCounter ("artifact.upgrade.fallbacks");
+        upgrade_rollbacks = metrics.getCounter ("artifact.upgrade.rollbacks");
+        metrics.addGauge ("artifact.async.pending", async_deployer::getPendingCount);
+        metrics.addGauge ("artifact.async.running", async_deployer::getRunningCount);
+        metrics.addHitRatio ("engine.selection", engine_selector::getHitCount, engine_selector::getMissCount);
+        metrics.addGauge ("artifacts.registered", artifact_registry::size);
         log.info ("DefaultArtifactDeployer started");
     }
 
     @Invalidate
     private void invalidate ()
     {
-        log.info ("DefaultArtifactDeployer stopped");
+        async_deployer.close ();
+        artifact_registry.close (context);
+        log.info ("DefaultArtifactDeployer stopped: {}", engine_selector);
     }
 }
 
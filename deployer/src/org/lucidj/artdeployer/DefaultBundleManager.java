@@ -23,17 +23,23 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
-import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
 
 import org.osgi.framework.Bundle;
@@ -41,17 +47,13 @@ import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleListener;
 import org.osgi.framework.Version;
-import org.osgi.framework.namespace.BundleNamespace;
-import org.osgi.framework.namespace.PackageNamespace;
-import org.osgi.framework.wiring.BundleRequirement;
-import org.osgi.framework.wiring.BundleRevision;
-import org.osgi.resource.Namespace;
-import org.osgi.resource.Requirement;
+import org.osgi.framework.wiring.FrameworkWiring;
 import org.apache.felix.ipojo.annotations.Component;
 import org.apache.felix.ipojo.annotations.Context;
 import org.apache.felix.ipojo.annotations.Instantiate;
 import org.apache.felix.ipojo.annotations.Invalidate;
 import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Requires;
 import org.apache.felix.ipojo.annotations.Validate;
 
 //
@@ -89,70 +91,101 @@ public class DefaultBundleManager implements BundleManager, BundleListener
     @Context
     private BundleContext context;
 
+    @Requires
+    private MetricsRecorder metrics;
+
     private Map<String, Properties> bundle_prop_cache;
     private String cache_dir;
+    private ManifestCache manifest_cache;
+    private BundleIndex bundle_index;
+    private PropertyIndex property_index;
+    private PropertiesPersister properties_persister;
+    private volatile long cache_ready_ms = -1;
+    private AtomicInteger resolution_holds = new AtomicInteger ();
+    private ResolveQueue resolve_queue = new ResolveQueue ();
+    private StartScheduler start_scheduler;
+    private LifecycleExecutor lifecycle_executor;
+    private Map<String, String> modified_digests = new ConcurrentHashMap<> ();
+    private Set<Long> restarting_bundles = ConcurrentHashMap.newKeySet ();
+    private long refresh_timeout_ms;
+    private boolean digest_changes;
+    private TreeFingerprint tree_fingerprints;
+    private ArtifactSnapshot artifact_snapshots;
+
+    private Histogram install_timer;
+    private Histogram update_timer;
+    private Histogram uninstall_timer;
+    private Histogram update_pass_timer;
+    private Histogram switch_over_timer;
+    private Histogram snapshot_timer;
 
     public DefaultBundleManager ()
     {
         bundle_prop_cache = new ConcurrentHashMap<> ();
+        bundle_index = new BundleIndex ();
+        property_index = new PropertyIndex ();
+
+        // The properties we look up all the time
+        property_index.addKey (BND_SOURCE, bundle_prop_cache);
+        property_index.addKey (Constants.PROP_DEPLOYMENT_ENGINE, bundle_prop_cache);
+        property_index.addKey (Constants.PROP_BUNDLE_STATE, bundle_prop_cache);
+        manifest_cache = new ManifestCache (Constants.ARTIFACT_MANIFEST_CACHE_VALUE);
     }
 
-    private File get_bundle_data_file (String location)
+    private PropertiesStore open_properties_store ()
     {
-        // <Sanitized location>.properties
-        return (new File (cache_dir, location.replaceAll ("\\p{P}", "_") + ".properties"));
+        String store_type = context.getProperty (Constants.ARTIFACT_CACHE_STORE_PROPERTY);
+
+        if (Constants.CACHE_STORE_JOURNAL.equalsIgnoreCase (store_type))
+        {
+            log.info ("Using journal properties store");
+            return (new JournalPropertiesStore (new File (cache_dir),
+                get_int_property (Constants.ARTIFACT_JOURNAL_COMPACT_PROPERTY, Constants.ARTIFACT_JOURNAL_COMPACT_VALUE)));
+        }
+        return (new FilePropertiesStore (new File (cache_dir),
+            get_int_property (Constants.ARTIFACT_CACHE_LOAD_THREADS_PROPERTY, Constants.ARTIFACT_CACHE_LOAD_THREADS_VALUE)));
     }
 
-    private void populate_cache ()
+    private void populate_cache (PropertiesStore store)
     {
-        File[] bundle_list = new File (cache_dir).listFiles ();
+        long start_time = System.nanoTime ();
 
-        if (bundle_list == null)
+        for (Map.Entry<String, Properties> entry: store.load ().entrySet ())
         {
-            log.error ("Error reading cache {}", cache_dir);
-            return;
+            bundle_prop_cache.put (entry.getKey (), entry.getValue ());
+            property_index.update (entry.getKey (), entry.getValue ());
         }
 
-        // TODO: PROP FILE CLEANUP FOR UNUSED BUNDLES (LastModified > N minutes)
-        for (File bundle_data_file: bundle_list)
-        {
-            try
-            {
-                Properties properties = new Properties ();
-                properties.load (new FileInputStream (bundle_data_file));
-
-                if (properties.containsKey (Constants.PROP_LOCATION))
-                {
-                    bundle_prop_cache.put (properties.getProperty (Constants.PROP_LOCATION), properties);
-                }
-                else
-                {
-                    log.error ("Internal error: Missing bundle location from {}", bundle_data_file);
-                }
-            }
-            catch (Exception e)
-            {
-                log.error ("Error reading deployment properties from {}", bundle_data_file, e);
-            }
-        }
+        cache_ready_ms = TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - start_time);
+        log.info ("Bundle cache ready: {} entries in {}ms", bundle_prop_cache.size (), cache_ready_ms);
     }
 
     private boolean store_properties (String location, Properties properties)
     {
         bundle_prop_cache.put (location, properties);
 
-        try
-        {
-            // Always store location so we can populate the bundle cache properly
-            properties.setProperty (Constants.PROP_LOCATION, location);
-            properties.store (new FileOutputStream (get_bundle_data_file (location)), null);
-            return (true);
-        }
-        catch (Exception e)
+        // Always store location so we can populate the bundle cache properly
+        properties.setProperty (Constants.PROP_LOCATION, location);
+        property_index.update (location, properties);
+
+        // Written behind and coalesced with any other pending write for the same location
+        return (properties_persister.store (location, properties));
+    }
+
+    private void forget_properties (String location, Properties uninstalled_properties)
+    {
+        // Only if nothing was installed there since, the bin lock orders us with store_properties()
+        bundle_prop_cache.computeIfPresent (location, (key, properties) ->
         {
-            log.error ("Exception storing bundle properties: {}", location, e);
-            return (false);
-        }
+            if (properties != uninstalled_properties || context.getBundle (location) != null)
+            {
+                return (properties);
+            }
+
+            property_index.remove (location);
+            properties_persister.remove (location);
+            return (null);
+        });
     }
 
     private String get_state_string (int state)
@@ -169,113 +202,114 @@ public class DefaultBundleManager implements BundleManager, BundleListener
         return ("Unknown");
     }
 
-    private boolean bundle_have_optional (Bundle bundle)
+    private void retry_resolution (List<Bundle> bundles)
     {
-        BundleRevision revision = bundle.adapt (BundleRevision.class);
-
-        if (revision == null)
+        if (bundles.isEmpty () || resolution_holds.get () > 0)
         {
-            return (false);
+            // Nothing to do, or a batch will resolve everything when resumed
+            return;
         }
 
-        List<BundleRequirement> requirements = revision.getDeclaredRequirements (null);
+        log.debug ("Retrying resolution of {} bundles", bundles.size ());
 
-        if (requirements == null)
+        try
         {
-            return (false);
+            context.getBundle (0).adapt (FrameworkWiring.class).resolveBundles (bundles);
         }
-
-        for (Requirement req: requirements)
+        catch (Exception nah)
         {
-            String namespace = req.getNamespace();
-
-            if (PackageNamespace.PACKAGE_NAMESPACE.equals (namespace)
-                || BundleNamespace.BUNDLE_NAMESPACE.equals (namespace))
-            {
-                String optional_directive = req.getDirectives ().get (Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE);
-
-                if (Namespace.RESOLUTION_OPTIONAL.equals (optional_directive))
-                {
-                    return (true);
-                }
-            }
+            log.warn ("Exception resolving pending bundles: {}", nah.getMessage ());
         }
-        return (false);
     }
 
-    private void cycle_pending_installed_bundles ()
+    private void track_resolution (BundleEvent bundleEvent)
     {
-        List<Bundle> bundles_without_optionals = new ArrayList<> ();
-        List<Bundle> bundles_to_resolve = new ArrayList<> ();
+        Bundle bnd = bundleEvent.getBundle ();
 
-        // First discover if we can prioritize bundles without optional imports
-        for (Bundle bundle: context.getBundles ())
+        // We track every bundle, not only the ones we manage, since ours may depend on them
+        switch (bundleEvent.getType ())
         {
-            if (bundle.getState () != Bundle.INSTALLED)
+            case BundleEvent.INSTALLED:
+            case BundleEvent.UNRESOLVED:
+            case BundleEvent.UPDATED:
             {
-                continue;
+                resolve_queue.add (bnd);
+                break;
             }
-
-            // At this point, all bundles need to be resolved
-            bundles_to_resolve.add (bundle);
-
-            if (!bundle_have_optional (bundle))
+            case BundleEvent.RESOLVED:
             {
-                // But these should be resolved before
-                bundles_without_optionals.add (bundle);
-            }
-        }
-
-        // Some bundles have pseudo-optional imports that could be better served
-        // if we could delay as much as possible the bundle resolution. So we try
-        // here to give a chance to them and solve first all bundles that don't
-        // have any optional import. So, when all bundles without optionals are
-        // resolved and active, we try to resolve bundles with optional imports.
-        // Kinda hacky, but works quite nicely.
-        //
-        if (!bundles_without_optionals.isEmpty ())
-        {
-            bundles_to_resolve = bundles_without_optionals;
-        }
+                // Give a chance for bundles waiting on whatever this one provides
+                List<Bundle> woken_bundles = resolve_queue.wake (bnd);
 
-        // Now try to resolve the bundles
-        for (Bundle bundle: bundles_to_resolve)
-        {
-            try
-            {
-                bundle.getResource ("META-INF/MANIFEST.MF");
+                if (!woken_bundles.isEmpty ())
+                {
+                    lifecycle_executor.execute (bnd.getBundleId (), () -> retry_resolution (woken_bundles));
+                }
+                break;
             }
-            catch (Exception nah)
+            case BundleEvent.UNINSTALLED:
             {
-                log.warn ("Exception cycling installed bundle {}: {}", bundle, nah.getMessage ());
+                resolve_queue.remove (bnd);
+                forget_tree (bnd.getLocation ());
+                break;
             }
         }
     }
 
     @Override // BundleListener
     public void bundleChanged (BundleEvent bundleEvent)
+    {
+        Bundle bnd = bundleEvent.getBundle ();
+
+        // Only bookkeeping here, so we don't hold up the delivery of other events
+        track_resolution (bundleEvent);
+
+        // Is this bundle managed by us?
+        if (!bundle_prop_cache.containsKey (bnd.getLocation ()))
+        {
+            // Nope
+            return;
+        }
+
+        // The real work goes after whatever is still pending for this bundle, so what
+        // an update pass is doing must be decided now, the pass may be over by then
+        int state = bnd.getState ();
+        Properties event_properties = bundle_prop_cache.get (bnd.getLocation ());
+        boolean restart_pending = restarting_bundles.contains (bnd.getBundleId ());
+        lifecycle_executor.execute (bnd.getBundleId (),
+            () -> handle_bundle_event (bundleEvent, state, event_properties, restart_pending));
+    }
+
+    private void handle_bundle_event (BundleEvent bundleEvent, int state, Properties event_properties,
+                                      boolean restart_pending)
     {
         String msg = "Live long and prosper";
         Bundle bnd = bundleEvent.getBundle ();
         String location = bnd.getLocation ();
         Properties properties = bundle_prop_cache.get (location);
 
-        // Is this bundle managed by us?
         if (properties == null)
         {
-            // Nope
             return;
         }
 
-        // Store bundle state
-        properties.setProperty (Constants.PROP_BUNDLE_STATE, Integer.toString (bnd.getState ()));
-        properties.setProperty (Constants.PROP_BUNDLE_STATE_HUMAN, get_state_string (bnd.getState ()));
+        // Store bundle state, as it was when the event happened
+        properties.setProperty (Constants.PROP_BUNDLE_STATE, Integer.toString (state));
+        properties.setProperty (Constants.PROP_BUNDLE_STATE_HUMAN, get_state_string (state));
         store_properties (location, properties);
 
         switch (bundleEvent.getType ())
         {
             case BundleEvent.INSTALLED:
             {
+                if (resolution_holds.get () > 0)
+                {
+                    // A batch is being installed, it will be resolved in a single pass
+                    log.debug ("Bundle {} installed -- resolution suspended", bnd);
+                    msg = "INSTALLED";
+                    break;
+                }
+
                 // This forces framework to try to get bundle resolved
                 bnd.getResource ("META-INF/MANIFEST.MF");
                 log.debug ("Bundle {} installed -- trying to resolve", bnd);
@@ -289,31 +323,35 @@ public class DefaultBundleManager implements BundleManager, BundleListener
             }
             case BundleEvent.RESOLVED:
             {
-                try
+                boolean transient_start = is_transient_start (bnd);
+
+                if (properties.getProperty (Constants.PROP_STAGED) != null)
                 {
-                    if (Constants.BUNDLE_START_TRANSIENT.equalsIgnoreCase (properties.getProperty (Constants.PROP_BUNDLE_START, Constants.BUNDLE_START_NORMAL)))
-                    {
-                        log.debug ("Bundle {} is resolved -- will start transient now", bnd);
-                        bnd.start (Bundle.START_TRANSIENT);
-                    }
-                    else
-                    {
-                        log.debug ("Bundle {} is resolved -- will start now", bnd);
-                        bnd.start ();
-                    }
+                    // Side by side with the running revision, started only on switch-over
+                    log.debug ("Bundle {} resolved -- staged", bnd);
                 }
-                catch (Exception e)
+                else if (restart_pending)
+                {
+                    // Part of an update pass, restarted along with the rest of the group
+                    log.debug ("Bundle {} resolved -- restart pending", bnd);
+                }
+                else if (start_scheduler != null)
                 {
-                    log.info ("Exception starting bundle {}", bnd, e);
+                    // Started by dependency level, in parallel with other bundles
+                    start_scheduler.schedule (bnd, transient_start);
+                }
+                else
+                {
+                    StartScheduler.startBundle (bnd, transient_start);
                 }
                 msg = "RESOLVED";
                 break;
             }
             case BundleEvent.STARTED:
             {
+                metrics.artifactActive (properties.getProperty (BND_SOURCE, location));
                 log.info ("Bundle started: {}", bnd);
                 msg = "STARTED";
-                cycle_pending_installed_bundles ();     // Give a chance for other bundles to resolve
                 break;
             }
             case BundleEvent.STARTING:
@@ -333,6 +371,16 @@ public class DefaultBundleManager implements BundleManager, BundleListener
             }
             case BundleEvent.UNINSTALLED:
             {
+                String snapshot = properties.getProperty (Constants.PROP_SNAPSHOT);
+
+                if (snapshot != null)
+                {
+                    // Nobody will read it again
+                    artifact_snapshots.discard (new File (snapshot));
+                }
+
+                // Staged and replaced locations are never reused, don't let them pile up
+                forget_properties (location, event_properties);
                 msg = "UNINSTALLED";
                 break;
             }
@@ -354,26 +402,58 @@ public class DefaultBundleManager implements BundleManager, BundleListener
         log.debug ("bundleChanged: {} eventType={} state={}", bnd, msg, get_state_string (bnd.getState ()));
     }
 
+    private String get_cache_key (File file)
+    {
+        try
+        {
+            return (file.getCanonicalPath ());
+        }
+        catch (IOException e)
+        {
+            return (file.getAbsolutePath ());
+        }
+    }
+
     @Override // BundleManager
     public Manifest getManifest (File file)
     {
+        boolean is_directory = file.isDirectory ();
+        File manifest_source = is_directory? new File (file, "/META-INF/MANIFEST.MF"): file;
+        BasicFileAttributes attrs = ManifestCache.stat (manifest_source);
+
+        if (attrs == null)
+        {
+            // Same as FileNotFoundException below
+            return (null);
+        }
+
+        // Unchanged files won't be parsed again
+        String cache_key = get_cache_key (file);
+        Manifest cached_manifest = manifest_cache.get (cache_key, attrs);
+
+        if (cached_manifest != null)
+        {
+            return (cached_manifest);
+        }
+
         FileInputStream file_stream = null;
+        Manifest manifest;
 
         try
         {
-            if (file.isDirectory ())
+            if (is_directory)
             {
                 // Will open the manifest file itself
-                file_stream = new FileInputStream (new File (file, "/META-INF/MANIFEST.MF"));
-                return (new Manifest (file_stream));
+                file_stream = new FileInputStream (manifest_source);
+                manifest = new Manifest (file_stream);
             }
             else
             {
-                // Open from within Jar file
-                file_stream = new FileInputStream (file);
-                JarInputStream jar_stream = new JarInputStream (file_stream);
-                return (jar_stream.getManifest ());
+                // Straight from the zip central directory
+                manifest = ManifestReader.read (file);
             }
+            manifest_cache.put (cache_key, attrs, manifest);
+            return (manifest);
         }
         catch (FileNotFoundException ignore)
         {
@@ -397,6 +477,22 @@ public class DefaultBundleManager implements BundleManager, BundleListener
         }
     }
 
+    public ManifestCache getManifestCache ()
+    {
+        return (manifest_cache);
+    }
+
+    public PropertiesPersister getPropertiesPersister ()
+    {
+        return (properties_persister);
+    }
+
+    public long getCacheReadyMillis ()
+    {
+        // -1 until the cache is loaded
+        return (cache_ready_ms);
+    }
+
     @Override // BundleManager
     public Manifest getManifest (String location)
     {
@@ -412,66 +508,73 @@ public class DefaultBundleManager implements BundleManager, BundleListener
     @Override // BundleManager
     public Bundle getBundleByDescription (String symbolic_name, Version version)
     {
-        // TODO: ADD CACHE
-        Bundle latest_bundle = null;
-        Version latest_version = null;
-        Bundle[] bundles = context.getBundles ();
+        // Exact or latest version, both O(log n) on the installed versions
+        return (bundle_index.getBundle (symbolic_name, version));
+    }
 
-        for (Bundle bundle: bundles)
-        {
-            if (symbolic_name.equals (bundle.getSymbolicName ()))
-            {
-                Version bundle_version = bundle.getVersion ();
+    private File get_file (String location)
+    {
+        Properties properties = bundle_prop_cache.get (location);
 
-                if (version != null)
-                {
-                    if (version.equals (bundle_version))
-                    {
-                        return (bundle);
-                    }
-                }
-                else // version == null, find the latest bundle
-                {
-                    if (latest_version == null ||
-                        latest_version.compareTo (bundle_version) == -1)
-                    {
-                        // A newer version was found
-                        latest_bundle = bundle;
-                        latest_version = bundle_version;
-                    }
-                }
-            }
+        if (properties != null && properties.getProperty (Constants.PROP_SNAPSHOT) != null)
+        {
+            // The snapshot is only a copy, the artifact itself is what we watch
+            location = properties.getProperty (BND_SOURCE, location);
         }
-        return (latest_bundle);
-    }
 
-    private File get_valid_file (String location)
-    {
         // TODO: ODD PLACE TO STRIP reference: FROM location
         if (location.startsWith (REFERENCE_PREFIX))
         {
             location = location.substring (REFERENCE_PREFIX.length ());
         }
 
+        int fragment = location.indexOf ('#');
+
+        if (fragment != -1)
+        {
+            // Staged revisions share the file of their artifact
+            location = location.substring (0, fragment);
+        }
+
         try
         {
-            File f = new File (new URI (location));
+            return (new File (new URI (location)));
+        }
+        catch (Exception ignore)
+        {
+            return (null);
+        }
+    }
 
-            if (f.exists () && f.canRead ())
-            {
-                return (f);
-            }
+    private File get_valid_file (String location)
+    {
+        File f = get_file (location);
+
+        if (f != null && f.exists () && f.canRead ())
+        {
+            return (f);
         }
-        catch (Exception ignore) {};
         // TODO: NOT FOUND? NOT READABLE? WHAT?
         return (null);
     }
 
+    private void forget_tree (String location)
+    {
+        File f = get_file (location);
+
+        if (f != null)
+        {
+            // No-op unless it was an exploded bundle
+            tree_fingerprints.forget (f);
+        }
+    }
+
     @Override // BundleManager
     public Bundle installBundle (String location, Properties properties)
         throws Exception
     {
         Bundle new_bundle = null;
+        long start_time = System.nanoTime ();
 
         log.debug ("installBundle: location={} properties={}", location, properties);
 
@@ -492,7 +595,7 @@ public class DefaultBundleManager implements BundleManager, BundleListener
 
             if ((new_bundle = getBundleByDescription (symbolic_name, version)) != null)
             {
-                if (location.equals (new_bundle.getLocation ()))
+                if (location.equals (getBundleProperty (new_bundle, BND_SOURCE, new_bundle.getLocation ())))
                 {
                     log.info ("Bundle {} already installed (location: {})", new_bundle, location);
                 }
@@ -512,41 +615,314 @@ public class DefaultBundleManager implements BundleManager, BundleListener
                 properties = new Properties ();
             }
 
+            if (properties.getProperty (BND_SOURCE) == null)
+            {
+                properties.setProperty (BND_SOURCE, location);
+            }
+
             // Add bundle properties to repository, so we can manage it
-            properties.setProperty (Constants.PROP_LAST_MODIFIED, Long.toString (bundle_file.lastModified ()));
+            record_fingerprint (properties, bundle_file, digest_changes? ArtifactDigest.digest (bundle_file): null);
             properties.setProperty (Constants.PROP_BUNDLE_STATE, Integer.toString (Bundle.UNINSTALLED));
-            store_properties (location, properties);
+            String bundle_location = get_bundle_location (location, bundle_file, properties);
+            Bundle located_bundle = context.getBundle (bundle_location);
+
+            if (located_bundle != null)
+            {
+                // Never overwrite the properties of a bundle already there
+                log.info ("Bundle {} already installed at {}", located_bundle, bundle_location);
+                return (located_bundle);
+            }
 
-            // Install bundle
-            new_bundle = context.installBundle (location);
+            if (properties.getProperty (Constants.PROP_SNAPSHOT) != null)
+            {
+                long snapshot_start = System.nanoTime ();
+                artifact_snapshots.take (bundle_file, new File (properties.getProperty (Constants.PROP_SNAPSHOT)));
+                snapshot_timer.recordSince (snapshot_start);
+            }
+            store_properties (bundle_location, properties);
+
+            // Install bundle; a staged revision has no file of its own, so we feed the artifact
+            if (properties.getProperty (Constants.PROP_STAGED) != null)
+            {
+                new_bundle = context.installBundle (bundle_location, new FileInputStream (bundle_file));
+            }
+            else
+            {
+                new_bundle = context.installBundle (bundle_location);
+            }
+            install_timer.recordSince (start_time);
         }
         catch (Exception e)
         {
+            String snapshot = (properties == null)? null: properties.getProperty (Constants.PROP_SNAPSHOT);
+
+            if (snapshot != null && new_bundle == null)
+            {
+                artifact_snapshots.discard (new File (snapshot));
+            }
             throw (new Exception ("Exception on bundle install: " + location, e));
         }
         return (new_bundle);
     }
 
+    //
+    // Where the framework gets the bundle from. By default it copies the artifact into its
+    // own storage; by reference it uses the artifact in place, or a snapshot of it kept in
+    // our cache, saving the copy either way.
+    //
+    private String get_bundle_location (String location, File bundle_file, Properties properties)
+    {
+        String install_mode = properties.getProperty (Constants.PROP_INSTALL_MODE, Constants.INSTALL_MODE_COPY);
+
+        if (Constants.INSTALL_MODE_COPY.equals (install_mode)
+            || location.startsWith (REFERENCE_PREFIX)
+            || properties.getProperty (Constants.PROP_STAGED) != null)
+        {
+            return (location);
+        }
+
+        if (Constants.INSTALL_MODE_SNAPSHOT.equals (install_mode) && bundle_file.isFile ())
+        {
+            // Taken only once we know the location is free
+            File snapshot = artifact_snapshots.getSnapshotFile (location, bundle_file);
+            properties.setProperty (Constants.PROP_SNAPSHOT, snapshot.getPath ());
+            return (REFERENCE_PREFIX + snapshot.toURI ());
+        }
+
+        // Exploded bundles have nothing to snapshot, they are always used in place
+        return (REFERENCE_PREFIX + location);
+    }
+
+    private void refresh_snapshot (Bundle bnd)
+        throws IOException
+    {
+        Properties properties = bundle_prop_cache.get (bnd.getLocation ());
+        String snapshot = (properties == null)? null: properties.getProperty (Constants.PROP_SNAPSHOT);
+
+        if (snapshot == null)
+        {
+            return;
+        }
+
+        File bundle_file = get_valid_file (bnd.getLocation ());
+
+        if (bundle_file == null)
+        {
+            throw (new IOException ("Artifact not found: " + properties.getProperty (BND_SOURCE)));
+        }
+
+        // Renamed over the old one, the running revision keeps the file it has open
+        long start_time = System.nanoTime ();
+        artifact_snapshots.take (bundle_file, new File (snapshot));
+        snapshot_timer.recordSince (start_time);
+    }
+
+    //
+    // For exploded bundles the digest is the tree fingerprint, computed here if not given.
+    //
+    private void record_fingerprint (Properties properties, File bundle_file, String digest)
+    {
+        properties.setProperty (Constants.PROP_LAST_MODIFIED, Long.toString (bundle_file.lastModified ()));
+        properties.setProperty (Constants.PROP_SIZE, Long.toString (bundle_file.length ()));
+
+        if (bundle_file.isDirectory ())
+        {
+            String tree = (digest != null)? digest: tree_fingerprints.getFingerprint (bundle_file);
+            properties.remove (Constants.PROP_DIGEST);
+
+            if (tree != null)
+            {
+                properties.setProperty (Constants.PROP_TREE, tree);
+            }
+            else
+            {
+                properties.remove (Constants.PROP_TREE);
+            }
+            return;
+        }
+
+        properties.remove (Constants.PROP_TREE);
+
+        if (digest != null)
+        {
+            properties.setProperty (Constants.PROP_DIGEST, digest);
+        }
+        else
+        {
+            properties.remove (Constants.PROP_DIGEST);
+        }
+    }
+
+    private boolean is_transient_start (Bundle bnd)
+    {
+        Properties properties = bundle_prop_cache.get (bnd.getLocation ());
+        return (properties != null && Constants.BUNDLE_START_TRANSIENT.equalsIgnoreCase (
+            properties.getProperty (Constants.PROP_BUNDLE_START, Constants.BUNDLE_START_NORMAL)));
+    }
+
+    private void record_update (Bundle bnd)
+    {
+        String location = bnd.getLocation ();
+        Properties properties = bundle_prop_cache.get (location);
+        File bundle_file = get_valid_file (location);
+
+        // Computed already if the change was detected by contents
+        String digest = modified_digests.remove (location);
+
+        if (properties == null || bundle_file == null)
+        {
+            return;
+        }
+
+        if (digest == null && digest_changes)
+        {
+            digest = ArtifactDigest.digest (bundle_file);
+        }
+        record_fingerprint (properties, bundle_file, digest);
+        store_properties (location, properties);
+    }
+
+    private void refresh_and_wait (Collection<Bundle> bundles)
+    {
+        FrameworkWiring fw_wiring = context.getBundle (0).adapt (FrameworkWiring.class);
+        CountDownLatch refreshed = new CountDownLatch (1);
+
+        // Dependents of the given bundles are refreshed as well
+        fw_wiring.refreshBundles (bundles, event -> refreshed.countDown ());
+
+        try
+        {
+            if (!refreshed.await (refresh_timeout_ms, TimeUnit.MILLISECONDS))
+            {
+                log.warn ("Timeout waiting for the refresh of {} bundles", bundles.size ());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread ().interrupt ();
+        }
+    }
+
+    private void start_by_level (Map<Bundle, Boolean> batch)
+    {
+        if (start_scheduler != null)
+        {
+            try
+            {
+                start_scheduler.startLevels (batch);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread ().interrupt ();
+            }
+            return;
+        }
+
+        for (List<Bundle> level: StartScheduler.getLevels (batch.keySet ()))
+        {
+            for (Bundle bundle: level)
+            {
+                StartScheduler.startBundle (bundle, batch.get (bundle));
+            }
+        }
+    }
+
     @Override // BundleManager
-    public boolean updateBundle (Bundle bnd)
+    public int updateBundles (Collection<Bundle> bundles)
     {
+        if (bundles.isEmpty ())
+        {
+            return (0);
+        }
+
+        long start_time = System.nanoTime ();
+        List<Bundle> updated_bundles = new ArrayList<> (bundles.size ());
+        Map<Bundle, Boolean> restart_bundles = new LinkedHashMap<> ();
+
+        // The RESOLVED events won't start these one by one, we restart them by level below
+        bundles.forEach (bnd -> restarting_bundles.add (bnd.getBundleId ()));
+
         try
         {
-            log.info ("Updating bundle {}", bnd);
-            bnd.stop (Bundle.STOP_TRANSIENT);
-            bnd.update ();
-            return (true);
+            // Stop the whole group first, so none of them runs against half updated peers
+            for (Bundle bnd: bundles)
+            {
+                try
+                {
+                    bnd.stop (Bundle.STOP_TRANSIENT);
+                }
+                catch (Exception e)
+                {
+                    log.warn ("Exception stopping bundle {}: {}", bnd, e.toString ());
+                }
+            }
+
+            for (Bundle bnd: bundles)
+            {
+                long update_start = System.nanoTime ();
+
+                try
+                {
+                    log.info ("Updating bundle {}", bnd);
+                    refresh_snapshot (bnd);
+                    bnd.update ();
+                    update_timer.recordSince (update_start);
+                    record_update (bnd);
+                    updated_bundles.add (bnd);
+                    restart_bundles.put (bnd, is_transient_start (bnd));
+                }
+                catch (Exception e)
+                {
+                    log.error ("Error updating bundle {}", bnd, e);
+                    modified_digests.remove (bnd.getLocation ());
+                    uninstallBundle (bnd);
+                }
+            }
+
+            // A single refresh drops the stale wirings of the whole set, uninstalled ones included
+            refresh_and_wait (bundles);
+
+            if (!updated_bundles.isEmpty ())
+            {
+                context.getBundle (0).adapt (FrameworkWiring.class).resolveBundles (updated_bundles);
+                start_by_level (restart_bundles);
+            }
         }
-        catch (Exception e)
+        finally
         {
-            log.error ("Error updating bundle {}", bnd, e);
-            uninstallBundle (bnd);
+            bundles.forEach (bnd -> restarting_bundles.remove (bnd.getBundleId ()));
+        }
+
+        update_pass_timer.recordSince (start_time);
+        log.info ("Updated {} of {} bundles in {}ms", updated_bundles.size (), bundles.size (),
+            TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - start_time));
+        return (updated_bundles.size ());
+    }
+
+    @Override // BundleManager
+    public boolean updateBundle (Bundle bnd)
+    {
+        return (updateBundles (Collections.singletonList (bnd)) == 1);
+    }
+
+    private boolean is_exploded_modified (Bundle bnd, String location, File bundle_dir, Properties properties)
+    {
+        String bundle_tree = properties.getProperty (Constants.PROP_TREE);
+        String dir_tree = tree_fingerprints.getFingerprint (bundle_dir);
+
+        if (dir_tree == null || dir_tree.equals (bundle_tree))
+        {
+            // Nothing changed anywhere under the bundle, whatever the top directory says
             return (false);
         }
+
+        log.debug ("Modified ==> bnd={} tree={} dir_tree={}", bnd, bundle_tree, dir_tree);
+        modified_digests.put (location, dir_tree);
+        return (true);
     }
 
     @Override // BundleManager
-    public boolean refreshBundle (Bundle bnd)
+    public boolean isModified (Bundle bnd)
     {
         String location = bnd.getLocation ();
         File bundle_file = get_valid_file (location);
@@ -558,30 +934,142 @@ public class DefaultBundleManager implements BundleManager, BundleListener
         }
 
         Properties properties = bundle_prop_cache.get (location);
-        long bundle_lastmodified = Long.parseLong (properties.getProperty (Constants.PROP_LAST_MODIFIED));
 
-        if (bundle_lastmodified != bundle_file.lastModified ())
+        if (bundle_file.isDirectory () && properties.getProperty (Constants.PROP_TREE) != null)
         {
-            log.debug ("Modified ==> bnd={} bnd.getLastModified={} bnd_file.lastModified={}",
-                bnd, bundle_lastmodified, bundle_file.lastModified ());
+            return (is_exploded_modified (bnd, location, bundle_file, properties));
+        }
+
+        long bundle_lastmodified = Long.parseLong (properties.getProperty (Constants.PROP_LAST_MODIFIED));
+        long bundle_size = Long.parseLong (properties.getProperty (Constants.PROP_SIZE, "-1"));
+        long file_lastmodified = bundle_file.lastModified ();
+        long file_size = bundle_file.length ();
 
-            if (updateBundle (bnd))
+        if (bundle_lastmodified == file_lastmodified
+            && (!digest_changes || bundle_size == -1 || bundle_size == file_size))
+        {
+            if (bundle_file.isDirectory ())
             {
-                properties.setProperty (Constants.PROP_LAST_MODIFIED, Long.toString (bundle_file.lastModified ()));
+                // Installed before tree fingerprints, take this as the baseline
+                record_fingerprint (properties, bundle_file, null);
                 store_properties (location, properties);
-                return (true);
             }
+
+            // Nothing changed as far as we can tell without reading the contents
+            return (false);
         }
-        return false;
+
+        String file_digest = null;
+
+        if (digest_changes && (file_digest = ArtifactDigest.digest (bundle_file)) != null
+            && file_digest.equals (properties.getProperty (Constants.PROP_DIGEST)))
+        {
+            // Touched or copied over with the very same contents, no update needed
+            log.debug ("Unchanged contents ==> bnd={} bnd.getLastModified={} bnd_file.lastModified={}",
+                bnd, bundle_lastmodified, file_lastmodified);
+            record_fingerprint (properties, bundle_file, file_digest);
+            store_properties (location, properties);
+            return (false);
+        }
+
+        log.debug ("Modified ==> bnd={} bnd.getLastModified={} bnd_file.lastModified={}",
+            bnd, bundle_lastmodified, file_lastmodified);
+
+        if (file_digest != null)
+        {
+            // Saves reading it again once updated
+            modified_digests.put (location, file_digest);
+        }
+        return (true);
+    }
+
+    @Override // BundleManager
+    public boolean refreshBundle (Bundle bnd)
+    {
+        return (isModified (bnd) && updateBundle (bnd));
+    }
+
+    private void start_staged (Bundle bnd)
+        throws Exception
+    {
+        String location = bnd.getLocation ();
+        Properties properties = bundle_prop_cache.get (location);
+
+        if (properties != null)
+        {
+            // From now on a regular bundle
+            properties.remove (Constants.PROP_STAGED);
+            store_properties (location, properties);
+        }
+
+        if (is_transient_start (bnd))
+        {
+            bnd.start (Bundle.START_TRANSIENT);
+        }
+        else
+        {
+            bnd.start ();
+        }
+    }
+
+    @Override // BundleManager
+    public long switchBundle (Bundle from, Bundle to)
+        throws Exception
+    {
+        FrameworkWiring fw_wiring = context.getBundle (0).adapt (FrameworkWiring.class);
+
+        // Resolved beside the running revision before anything is touched
+        if (!fw_wiring.resolveBundles (Collections.singletonList (to)))
+        {
+            log.info ("Bundle {} can't resolve beside {}, discarding staged revision", to, from);
+            uninstallBundle (to);
+            fw_wiring.refreshBundles (Collections.singletonList (to));
+            return (-1);
+        }
+
+        boolean from_active = (from.getState () & (Bundle.ACTIVE | Bundle.STARTING)) != 0;
+        long start_time = System.nanoTime ();
+
+        // Only this window is without the services
+        from.stop (Bundle.STOP_TRANSIENT);
+
+        try
+        {
+            start_staged (to);
+        }
+        catch (Exception e)
+        {
+            log.error ("Bundle {} failed to start, rolling back to {}", to, from, e);
+            uninstallBundle (to);
+
+            if (from_active)
+            {
+                StartScheduler.startBundle (from, is_transient_start (from));
+            }
+            fw_wiring.refreshBundles (Collections.singletonList (to));
+            throw (e);
+        }
+
+        long switch_over_ns = System.nanoTime () - start_time;
+        switch_over_timer.record (switch_over_ns);
+        log.info ("Switched over from {} to {} in {}ms", from, to, TimeUnit.NANOSECONDS.toMillis (switch_over_ns));
+
+        // Dependents get rewired to the new revision in the background
+        uninstallBundle (from);
+        fw_wiring.refreshBundles (Collections.singletonList (from));
+        return (switch_over_ns);
     }
 
     @Override // BundleManager
     public boolean uninstallBundle (Bundle bnd)
     {
+        long start_time = System.nanoTime ();
+
         try
         {
             log.info ("Uninstalling bundle {}", bnd);
             bnd.uninstall ();
+            uninstall_timer.recordSince (start_time);
             return (true);
         }
         catch (Exception e)
@@ -591,6 +1079,41 @@ public class DefaultBundleManager implements BundleManager, BundleListener
         }
     }
 
+    @Override // BundleManager
+    public void suspendResolution ()
+    {
+        // While held, installed bundles are not poked one by one to get resolved
+        resolution_holds.incrementAndGet ();
+    }
+
+    @Override // BundleManager
+    public boolean resumeResolution (Collection<Bundle> bundles)
+    {
+        if (resolution_holds.decrementAndGet () < 0)
+        {
+            resolution_holds.set (0);
+            log.warn ("Unbalanced resumeResolution()");
+        }
+
+        if (bundles == null || bundles.isEmpty ())
+        {
+            retry_resolution (resolve_queue.getRetryCandidates ());
+            return (true);
+        }
+
+        // One resolver run for the whole set
+        FrameworkWiring fw_wiring = context.getBundle (0).adapt (FrameworkWiring.class);
+        long start_time = System.nanoTime ();
+        boolean all_resolved = fw_wiring.resolveBundles (bundles);
+
+        log.info ("Resolved {} bundles in {}ms (all resolved: {})", bundles.size (),
+            TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - start_time), all_resolved);
+
+        // Whatever got woken up while we were holding, plus any leftovers
+        retry_resolution (resolve_queue.getRetryCandidates ());
+        return (all_resolved);
+    }
+
     @Override // BundleManager
     public Bundle getBundleByLocation (String location)
     {
@@ -603,12 +1126,32 @@ public class DefaultBundleManager implements BundleManager, BundleListener
         return (null);
     }
 
-    @Override // BundleManager
-    public Bundle getBundleByProperty (String property, String value)
+    private List<Bundle> find_bundles_by_property (String property, String value, boolean first_only)
     {
-        // TODO: Bundle[] getBundlesByProperty(...)
-        Bundle found_bundle = null;
+        List<Bundle> found_bundles = new ArrayList<> ();
+        Set<String> indexed_locations = property_index.getLocations (property, value);
+
+        if (indexed_locations != null)
+        {
+            for (String location: indexed_locations)
+            {
+                // Bundle/ bundles have deployment-location != location, so some may be null
+                Bundle bundle = context.getBundle (location);
+
+                if (bundle != null)
+                {
+                    found_bundles.add (bundle);
 
+                    if (first_only)
+                    {
+                        break;
+                    }
+                }
+            }
+            return (found_bundles);
+        }
+
+        // Not indexed, we need to look everywhere
         for (Map.Entry<String, Properties> entry: bundle_prop_cache.entrySet())
         {
             Properties properties = entry.getValue ();
@@ -621,22 +1164,56 @@ public class DefaultBundleManager implements BundleManager, BundleListener
                     {
                         // We should try more than once because Bundle/ bundles have
                         // deployment-location != location
-                        if ((found_bundle = context.getBundle (entry.getKey ())) != null)
+                        Bundle bundle = context.getBundle (entry.getKey ());
+
+                        if (bundle != null)
                         {
-                            break;
+                            found_bundles.add (bundle);
+
+                            if (first_only)
+                            {
+                                break;
+                            }
                         }
                     }
                 }
                 else if (value.equals (properties.getProperty (property)))
                 {
-                    if ((found_bundle = context.getBundle (entry.getKey ())) != null)
+                    Bundle bundle = context.getBundle (entry.getKey ());
+
+                    if (bundle != null)
                     {
-                        break;
+                        found_bundles.add (bundle);
+
+                        if (first_only)
+                        {
+                            break;
+                        }
                     }
                 }
             }
         }
-        return (found_bundle);
+        return (found_bundles);
+    }
+
+    @Override // BundleManager
+    public Bundle getBundleByProperty (String property, String value)
+    {
+        List<Bundle> found_bundles = find_bundles_by_property (property, value, true);
+        return (found_bundles.isEmpty ()? null: found_bundles.get (0));
+    }
+
+    @Override // BundleManager
+    public Bundle[] getBundlesByProperty (String property, String value)
+    {
+        List<Bundle> found_bundles = find_bundles_by_property (property, value, false);
+        return (found_bundles.toArray (new Bundle [found_bundles.size ()]));
+    }
+
+    @Override // BundleManager
+    public boolean addIndexedProperty (String property)
+    {
+        return (property_index.addKey (property, bundle_prop_cache));
     }
 
     @Override // BundleManager
@@ -683,6 +1260,21 @@ public class DefaultBundleManager implements BundleManager, BundleListener
         return (cache_dir_file.canRead ());
     }
 
+    private int get_int_property (String property, int default_value)
+    {
+        String value = context.getProperty (property);
+
+        try
+        {
+            return ((value == null)? default_value: Integer.parseInt (value.trim ()));
+        }
+        catch (NumberFormatException e)
+        {
+            log.warn ("Invalid value for {}: {}", property, value);
+            return (default_value);
+        }
+    }
+
     @Validate
     private void validate ()
     {
@@ -715,11 +1307,87 @@ public class DefaultBundleManager implements BundleManager, BundleListener
             }
         }
 
+        // With digest change detection, a new timestamp alone doesn't trigger an update
+        String change_detect = context.getProperty (Constants.ARTIFACT_CHANGE_DETECT_PROPERTY);
+        digest_changes = Constants.CHANGE_DETECT_DIGEST.equalsIgnoreCase (
+            (change_detect == null)? Constants.ARTIFACT_CHANGE_DETECT_VALUE: change_detect.trim ());
+
+        // Bounded manifest cache, zero disables it
+        manifest_cache = new ManifestCache (
+            get_int_property (Constants.ARTIFACT_MANIFEST_CACHE_PROPERTY, Constants.ARTIFACT_MANIFEST_CACHE_VALUE));
+
+        // Fetched once, so the hot paths only record
+        install_timer = metrics.getTimer ("bundle.install");
+        update_timer = metrics.getTimer ("bundle.update");
+        uninstall_timer = metrics.getTimer ("bundle.uninstall");
+        update_pass_timer = metrics.getTimer ("bundle.update-pass");
+        switch_over_timer = metrics.getTimer ("bundle.switch-over");
+        snapshot_timer = metrics.getTimer ("bundle.snapshot");
+
+        // Artifacts installed by reference may be frozen here first
+        artifact_snapshots = new ArtifactSnapshot (new File (cache_dir, Constants.ARTIFACT_SNAPSHOT_DIR_VALUE));
+        metrics.addGauge ("bundle.snapshot.links", artifact_snapshots::getLinkCount);
+        metrics.addGauge ("bundle.snapshot.copies", artifact_snapshots::getCopyCount);
+        refresh_timeout_ms = get_int_property (Constants.ARTIFACT_REFRESH_TIMEOUT_MS_PROPERTY,
+            Constants.ARTIFACT_REFRESH_TIMEOUT_MS_VALUE);
+
+        // Properties are persisted from a background writer
+        PropertiesStore properties_store = open_properties_store ();
+        properties_persister = new PropertiesPersister (properties_store,
+            get_int_property (Constants.ARTIFACT_PERSIST_MS_PROPERTY, Constants.ARTIFACT_PERSIST_MS_VALUE),
+            get_int_property (Constants.ARTIFACT_PERSIST_BATCH_PROPERTY, Constants.ARTIFACT_PERSIST_BATCH_VALUE));
+
+        // Exploded bundles are walked on a pool of their own, the walk is mostly waiting on I/O
+        tree_fingerprints = new TreeFingerprint (get_int_property (Constants.ARTIFACT_TREE_THREADS_PROPERTY,
+            Math.min (Constants.ARTIFACT_TREE_THREADS_VALUE, Runtime.getRuntime ().availableProcessors ())));
+
+        // Zero start threads keeps the old behaviour, starting inline on the event thread
+
+        int start_threads = get_int_property (Constants.ARTIFACT_START_THREADS_PROPERTY,
+            Runtime.getRuntime ().availableProcessors ());
+
+        if (start_threads > 0)
+        {
+            start_scheduler = new StartScheduler (start_threads,
+                get_int_property (Constants.ARTIFACT_START_SETTLE_MS_PROPERTY, Constants.ARTIFACT_START_SETTLE_MS_VALUE));
+        }
+
+        // Bundle event handling, ordered per bundle; zero threads handles events inline
+        lifecycle_executor = new LifecycleExecutor (
+            get_int_property (Constants.ARTIFACT_LIFECYCLE_THREADS_PROPERTY, Runtime.getRuntime ().availableProcessors ()),
+            metrics.getTimer ("lifecycle.queue-latency"),
+            metrics.getTimer ("lifecycle.task"));
+
+        // Index every framework bundle by symbolic name and version
+        bundle_index.open (context);
+
         // Load references to all bundles we manage
-        populate_cache ();
+        populate_cache (properties_store);
 
         // Start listening to bundle events
         context.addBundleListener (this);
+
+        metrics.addHitRatio ("manifest.cache", manifest_cache::getHitCount, manifest_cache::getMissCount);
+        metrics.addGauge ("manifest.cache.evictions", manifest_cache::getEvictionCount);
+        metrics.addGauge ("properties.cache.ready-ms", this::getCacheReadyMillis);
+        metrics.addGauge ("properties.persist.queue-depth", properties_persister::getQueueDepth);
+        metrics.addGauge ("properties.persist.max-queue-depth", properties_persister::getMaxQueueDepth);
+        metrics.addGauge ("properties.persist.coalesced", properties_persister::getCoalescedCount);
+        metrics.addGauge ("properties.persist.writes", properties_persister::getWriteCount);
+        metrics.addGauge ("properties.persist.failures", properties_persister::getFailureCount);
+        metrics.addGauge ("bundles.indexed", bundle_index::size);
+        metrics.addGauge ("bundles.waiting-resolution", resolve_queue::size);
+        metrics.addGauge ("lifecycle.backlog", lifecycle_executor::getBacklog);
+        metrics.addGauge ("lifecycle.failures", lifecycle_executor::getFailures);
+
+        // Anything already waiting for resolution
+        for (Bundle bundle: context.getBundles ())
+        {
+            if (bundle.getState () == Bundle.INSTALLED)
+            {
+                resolve_queue.add (bundle);
+            }
+        }
         log.info ("DefaultBundleManager started");
     }
 
@@ -728,7 +1396,32 @@ public class DefaultBundleManager implements BundleManager, BundleListener
     {
         // Stop listening to bundle events
         context.removeBundleListener (this);
-        log.info ("DefaultBundleManager stopped");
+        bundle_index.close (context);
+
+        // Queued events may still start bundles and store properties
+        if (lifecycle_executor != null)
+        {
+            lifecycle_executor.close ();
+        }
+
+        if (start_scheduler != null)
+        {
+            start_scheduler.close ();
+            start_scheduler = null;
+        }
+
+        if (tree_fingerprints != null)
+        {
+            tree_fingerprints.close ();
+        }
+
+        // Pending property writes must reach the disk
+        if (properties_persister != null)
+        {
+            properties_persister.close ();
+        }
+        log.info ("DefaultBundleManager stopped: {} {}", manifest_cache, properties_persister);
+        manifest_cache.clear ();
     }
 }
 
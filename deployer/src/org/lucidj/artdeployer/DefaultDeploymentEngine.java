@@ -22,18 +22,23 @@ import org.lucidj.api.artdeployer.DeploymentEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Properties;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 
+import org.osgi.framework.Bundle;
 import org.apache.felix.ipojo.annotations.Component;
 import org.apache.felix.ipojo.annotations.Instantiate;
 import org.apache.felix.ipojo.annotations.Provides;
 import org.apache.felix.ipojo.annotations.Requires;
+import org.apache.felix.ipojo.annotations.StaticServiceProperty;
 
 @Component (immediate = true, publicFactory = false)
 @Instantiate
-@Provides
+@Provides (properties = @StaticServiceProperty (name = DeploymentEngine.ENGINE_EXTENSIONS, value = "jar", type = "java.lang.String"))
 public class DefaultDeploymentEngine implements DeploymentEngine
 {
     private final static Logger log = LoggerFactory.getLogger (DefaultDeploymentEngine.class);
@@ -81,6 +86,33 @@ public class DefaultDeploymentEngine implements DeploymentEngine
         instance.install (location, properties);
         return (instance);
     }
+
+    @Override
+    public int refreshArtifacts (Collection<Artifact> artifacts)
+    {
+        List<Bundle> modified_bundles = new ArrayList<> (artifacts.size ());
+        int refreshed = 0;
+
+        for (Artifact artifact: artifacts)
+        {
+            if (!(artifact instanceof DefaultDeploymentInstance))
+            {
+                // Not one of ours, it refreshes on its own
+                refreshed += artifact.refresh ()? 1: 0;
+                continue;
+            }
+
+            Bundle main_bundle = artifact.getMainBundle ();
+
+            if (main_bundle != null && bundleManager.isModified (main_bundle))
+            {
+                modified_bundles.add (main_bundle);
+            }
+        }
+
+        // Stopped, updated, refreshed and restarted as a group
+        return (refreshed + bundleManager.updateBundles (modified_bundles));
+    }
 }
 
 // EOF
@@ -80,7 +80,8 @@ public class DefaultDeploymentInstance implements Artifact
     public Bundle install (String location, Properties properties)
         throws Exception
     {
-        location_uri = new URI (location);
+        // Staged revisions are installed under a location of their own
+        location_uri = new URI ((properties == null)? location: properties.getProperty (BundleManager.BND_SOURCE, location));
         main_bundle = bundleManager.installBundle (location, properties);
         return (main_bundle);
     }
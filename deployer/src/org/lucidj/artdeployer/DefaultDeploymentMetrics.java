@@ -0,0 +1,232 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import org.lucidj.api.artdeployer.DeploymentMetrics;
+import org.lucidj.api.artdeployer.TimerSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.felix.ipojo.annotations.Component;
+import org.apache.felix.ipojo.annotations.Instantiate;
+import org.apache.felix.ipojo.annotations.Invalidate;
+import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Validate;
+
+@Component (immediate = true, publicFactory = false)
+@Instantiate
+@Provides (specifications = { DeploymentMetrics.class, MetricsRecorder.class })
+public class DefaultDeploymentMetrics implements DeploymentMetrics, MetricsRecorder
+{
+    private final static Logger log = LoggerFactory.getLogger (DefaultDeploymentMetrics.class);
+
+    private final static String MBEAN_NAME = "org.lucidj.artdeployer:type=DeploymentMetrics";
+
+    // Artifacts seen but not active yet; past the limit the oldest ones are dropped
+    private final static int MAX_TRACKED_ARTIFACTS = 10000;
+
+    private final Map<String, Histogram> timers = new ConcurrentHashMap<> ();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<> ();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<> ();
+    private final Map<String, LongSupplier[]> hit_ratios = new ConcurrentHashMap<> ();
+    private final Map<String, Long> seen_artifacts = new LinkedHashMap<String, Long> ()
+    {
+        @Override
+        protected boolean removeEldestEntry (Map.Entry<String, Long> eldest)
+        {
+            if (size () > MAX_TRACKED_ARTIFACTS)
+            {
+                // Most likely never going to be active, anyway we stop waiting for it
+                seen_evictions.increment ();
+                return (true);
+            }
+            return (false);
+        }
+    };
+
+    private Histogram time_to_active;
+    private LongAdder seen_evictions;
+    private ObjectName mbean_name;
+
+    public DefaultDeploymentMetrics ()
+    {
+        time_to_active = getTimer ("artifact.seen-to-active");
+        seen_evictions = getCounter ("artifact.seen-evicted");
+        addGauge ("artifact.seen-pending", this::get_seen_count);
+    }
+
+    @Override // MetricsRecorder
+    public Histogram getTimer (String name)
+    {
+        return (timers.computeIfAbsent (name, k -> new Histogram ()));
+    }
+
+    @Override // MetricsRecorder
+    public LongAdder getCounter (String name)
+    {
+        return (counters.computeIfAbsent (name, k -> new LongAdder ()));
+    }
+
+    @Override // MetricsRecorder
+    public void addGauge (String name, LongSupplier gauge)
+    {
+        gauges.put (name, gauge);
+    }
+
+    @Override // MetricsRecorder
+    public void addHitRatio (String name, LongSupplier hits, LongSupplier misses)
+    {
+        hit_ratios.put (name, new LongSupplier[] { hits, misses });
+    }
+
+    private synchronized long get_seen_count ()
+    {
+        return (seen_artifacts.size ());
+    }
+
+    @Override // MetricsRecorder
+    public void artifactSeen (String location)
+    {
+        synchronized (this)
+        {
+            // Seen again and again until installed, only the first time counts
+            seen_artifacts.putIfAbsent (location, System.nanoTime ());
+        }
+    }
+
+    @Override // MetricsRecorder
+    public void artifactActive (String location)
+    {
+        Long seen;
+
+        synchronized (this)
+        {
+            seen = seen_artifacts.remove (location);
+        }
+
+        if (seen != null)
+        {
+            time_to_active.recordSince (seen);
+        }
+    }
+
+    @Override // MetricsRecorder
+    public synchronized void artifactForgotten (String location)
+    {
+        seen_artifacts.remove (location);
+    }
+
+    @Override // DeploymentMetrics
+    public Map<String, Long> getCounters ()
+    {
+        Map<String, Long> values = new TreeMap<> ();
+
+        for (Map.Entry<String, LongAdder> counter: counters.entrySet ())
+        {
+            values.put (counter.getKey (), counter.getValue ().sum ());
+        }
+
+        for (Map.Entry<String, LongSupplier> gauge: gauges.entrySet ())
+        {
+            values.put (gauge.getKey (), gauge.getValue ().getAsLong ());
+        }
+        return (values);
+    }
+
+    @Override // DeploymentMetrics
+    public Map<String, Double> getHitRatios ()
+    {
+        Map<String, Double> values = new TreeMap<> ();
+
+        for (Map.Entry<String, LongSupplier[]> ratio: hit_ratios.entrySet ())
+        {
+            long hits = ratio.getValue () [0].getAsLong ();
+            long total = hits + ratio.getValue () [1].getAsLong ();
+            values.put (ratio.getKey (), (total == 0)? 0.0: hits / (double)total);
+        }
+        return (values);
+    }
+
+    @Override // DeploymentMetrics
+    public Map<String, TimerSummary> getTimers ()
+    {
+        Map<String, TimerSummary> values = new TreeMap<> ();
+
+        for (Map.Entry<String, Histogram> timer: timers.entrySet ())
+        {
+            values.put (timer.getKey (), timer.getValue ().getSummary ());
+        }
+        return (values);
+    }
+
+    @Override // DeploymentMetrics
+    public void reset ()
+    {
+        // Gauges and hit ratios belong to their owners
+        timers.values ().forEach (Histogram::reset);
+        counters.values ().forEach (LongAdder::reset);
+    }
+
+    @Validate
+    private void validate ()
+    {
+        try
+        {
+            MBeanServer mbean_server = ManagementFactory.getPlatformMBeanServer ();
+            ObjectName name = new ObjectName (MBEAN_NAME);
+
+            if (!mbean_server.isRegistered (name))
+            {
+                mbean_server.registerMBean (new StandardMBean (this, DeploymentMetrics.class, true), name);
+                mbean_name = name;
+            }
+        }
+        catch (Exception e)
+        {
+            log.warn ("Unable to register {}: {}", MBEAN_NAME, e.toString ());
+        }
+        log.info ("DefaultDeploymentMetrics started");
+    }
+
+    @Invalidate
+    private void invalidate ()
+    {
+        if (mbean_name != null)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer ().unregisterMBean (mbean_name);
+            }
+            catch (Exception ignore) {};
+            mbean_name = null;
+        }
+        log.info ("DefaultDeploymentMetrics stopped");
+    }
+}
+
+// EOF
@@ -0,0 +1,675 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import org.lucidj.api.artdeployer.Artifact;
+import org.lucidj.api.artdeployer.ArtifactDeployer;
+import org.lucidj.api.artdeployer.ArtifactResult;
+import org.lucidj.api.artdeployer.BundleManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+//
+// One deploy directory with its own scan thread, schedule, start level and start
+// mode. Each directory only looks after the artifacts found directly inside it,
+// so several of them can be reconciled at the same time without stepping on each
+// other; failed artifacts and metrics are shared through the DeploymentScanner.
+//
+public class DeployDirectory implements Runnable
+{
+    private final static Logger log = LoggerFactory.getLogger (DeployDirectory.class);
+
+    // Filesystems where change notifications are known to be lost or never delivered
+    private final static Set<String> UNRELIABLE_FS_TYPES = new HashSet<> (Arrays.asList (
+        "nfs", "nfs4", "cifs", "smbfs", "smb2", "fuse.sshfs", "sshfs", "9p", "vboxsf", "prl_fs"));
+
+    private final String name;
+    private final String deploy_dir_config;
+    private final int deploy_startlevel;
+    private final boolean start_transient;
+    private final String install_mode;
+    private final String scan_mode;
+    private final int thread_poll_ms;
+    private final long reconcile_ms;
+    private final StabilityTracker stability;
+
+    private final BundleContext context;
+    private final ArtifactDeployer artifactDeployer;
+    private final BundleManager bundleManager;
+    private final MetricsRecorder metrics;
+    private final TroubledArtifacts troubled_artifacts;
+    private final Histogram reconcile_timer;
+    private final Histogram watch_timer;
+
+    private String watched_dir_uri;
+    private File watched_dir_file;
+    private Thread poll_thread;
+    private WatchService watch_service;
+    private long last_reconcile;
+    private volatile int last_file_count;
+
+    public DeployDirectory (String name, String deploy_dir_config, int deploy_startlevel, boolean start_transient,
+                            String install_mode, String scan_mode, int thread_poll_ms, long reconcile_ms, long stable_ms,
+                            BundleContext context, ArtifactDeployer artifactDeployer, BundleManager bundleManager,
+                            MetricsRecorder metrics, TroubledArtifacts troubled_artifacts)
+    {
+        this.name = name;
+        this.deploy_dir_config = deploy_dir_config;
+        this.deploy_startlevel = deploy_startlevel;
+        this.start_transient = start_transient;
+        this.install_mode = install_mode;
+        this.scan_mode = scan_mode;
+        this.thread_poll_ms = thread_poll_ms;
+        this.reconcile_ms = reconcile_ms;
+        this.context = context;
+        this.artifactDeployer = artifactDeployer;
+        this.bundleManager = bundleManager;
+        this.metrics = metrics;
+        this.troubled_artifacts = troubled_artifacts;
+
+        // Artifacts are only touched when they stop changing for a while
+        stability = new StabilityTracker (stable_ms);
+        reconcile_timer = metrics.getTimer ("scan.reconcile");
+        watch_timer = metrics.getTimer ("scan.watch-events");
+    }
+
+    public String getName ()
+    {
+        return (name);
+    }
+
+    public String getDirectory ()
+    {
+        return (deploy_dir_config);
+    }
+
+    public int getStartLevel ()
+    {
+        return (deploy_startlevel);
+    }
+
+    public String getInstallMode ()
+    {
+        return (install_mode);
+    }
+
+    public int getFileCount ()
+    {
+        return (last_file_count);
+    }
+
+    public int getPendingCount ()
+    {
+        return (stability.getPending ().size ());
+    }
+
+    public synchronized boolean isStarted ()
+    {
+        return (poll_thread != null);
+    }
+
+    private boolean owns (String source)
+    {
+        if (watched_dir_uri == null || !source.startsWith (watched_dir_uri))
+        {
+            return (false);
+        }
+
+        // Only direct children (files or exploded bundles), a nested deploy directory has its own worker
+        int slash = source.indexOf ('/', watched_dir_uri.length ());
+        return (slash == -1 || slash == source.length () - 1);
+    }
+
+    private void refresh_or_remove_artifact (Bundle bundle, Artifact instance, String source,
+                                             List<String> refresh_sources)
+    {
+        if (bundleManager.getManifest (source) == null)
+        {
+            // The bundle probably was removed
+            instance.uninstall ();
+        }
+        else // Bundle file exists, check for changes
+        {
+            // We only refresh if the bundle is active
+            if (bundle.getState () == Bundle.ACTIVE)
+            {
+                // Refreshed together with everything else checked in this pass
+                refresh_sources.add (source);
+            }
+        }
+    }
+
+    private void refresh_artifacts (List<String> refresh_sources)
+    {
+        if (!refresh_sources.isEmpty ())
+        {
+            // Every engine decides what changed, and updates its artifacts as a group
+            artifactDeployer.refreshArtifacts (refresh_sources);
+        }
+    }
+
+    private boolean is_settled (String source)
+    {
+        try
+        {
+            return (stability.isStable (new File (new URI (source))));
+        }
+        catch (Exception e)
+        {
+            // Not a file we can wait for
+            return (true);
+        }
+    }
+
+    private void poll_repository_for_updates_and_removals ()
+    {
+        Map<Bundle, Properties> bundles = bundleManager.getBundles ();
+        List<String> refresh_sources = new ArrayList<> ();
+
+        for (Map.Entry<Bundle, Properties> bundle_entry: bundles.entrySet ())
+        {
+            Bundle bundle = bundle_entry.getKey ();
+            String source = bundleManager.getBundleProperty (bundle, BundleManager.BND_SOURCE, null);
+
+            if (source == null || !owns (source))
+            {
+                // Not managed by us
+                continue;
+            }
+
+            Artifact instance = artifactDeployer.getArtifact (bundle);
+
+            if (instance == null)
+            {
+                // Not managed by us
+                continue;
+            }
+
+            if (!is_settled (source))
+            {
+                // Being overwritten, check again once the copy is done
+                continue;
+            }
+
+            refresh_or_remove_artifact (bundle, instance, source, refresh_sources);
+        }
+        refresh_artifacts (refresh_sources);
+    }
+
+    private void install_artifacts (List<String> package_uris)
+    {
+        if (package_uris.isEmpty ())
+        {
+            return;
+        }
+
+        List<String> retry_uris = new ArrayList<> (package_uris.size ());
+
+        for (String package_uri: package_uris)
+        {
+            // Failed before and neither changed nor due for a retry: don't even look at it
+            if (troubled_artifacts.shouldRetry (package_uri))
+            {
+                retry_uris.add (package_uri);
+            }
+        }
+
+        if (retry_uris.isEmpty ())
+        {
+            return;
+        }
+
+        // Installed as a batch, so the framework resolves all of them in a single pass
+        for (ArtifactResult result: artifactDeployer.installArtifacts (retry_uris, start_transient, install_mode))
+        {
+            String package_uri = result.getLocation ();
+
+            if (result.isSuccess ())
+            {
+                troubled_artifacts.remove (package_uri); // Just in case
+                continue;
+            }
+
+            // Timed again from the next attempt
+            metrics.artifactForgotten (package_uri);
+
+            if (troubled_artifacts.failed (package_uri, result.getError ()))
+            {
+                // Show only new exceptions
+                log.warn ("{}", result.getError ().getMessage ());
+            }
+        }
+    }
+
+    private void locate_added_bundles ()
+    {
+        File[] package_list = watched_dir_file.listFiles ();
+
+        if (package_list == null)
+        {
+            return;
+        }
+
+        List<String> new_package_uris = new ArrayList<> ();
+        last_file_count = package_list.length;
+
+        for (File package_file: package_list)
+        {
+            if (StabilityTracker.isIgnored (package_file))
+            {
+                continue;
+            }
+
+            String package_uri = package_file.toURI ().toString ();
+
+            log.debug ("INSTALL Scanning {} -> {}", package_uri, package_file);
+
+            if (artifactDeployer.getArtifact (package_uri) == null) // The bundle isn't installed yet
+            {
+                metrics.artifactSeen (package_uri);
+
+                if (stability.isStable (package_file))
+                {
+                    new_package_uris.add (package_uri);
+                }
+                else
+                {
+                    log.debug ("Waiting for {} to settle", package_file);
+                }
+            }
+        }
+        install_artifacts (new_package_uris);
+    }
+
+    private void reconcile ()
+    {
+        long start_time = System.nanoTime ();
+        poll_repository_for_updates_and_removals ();
+        locate_added_bundles ();
+        last_reconcile = System.currentTimeMillis ();
+        reconcile_timer.recordSince (start_time);
+    }
+
+    private void reconcile_file (File package_file, List<String> new_package_uris, List<String> refresh_sources)
+    {
+        String file_name = package_file.getName ();
+
+        if (file_name.endsWith (StabilityTracker.READY_MARKER))
+        {
+            // The marker tells its artifact is complete
+            package_file = new File (package_file.getParentFile (),
+                file_name.substring (0, file_name.length () - StabilityTracker.READY_MARKER.length ()));
+        }
+        else if (StabilityTracker.isIgnored (package_file))
+        {
+            // Work in progress, the final name will show up when done
+            return;
+        }
+
+        String package_uri = package_file.toURI ().toString ();
+        Artifact instance = artifactDeployer.getArtifact (package_uri);
+
+        // A deleted exploded bundle no longer maps to a directory uri
+        if (instance == null && !package_uri.endsWith ("/"))
+        {
+            instance = artifactDeployer.getArtifact (package_uri + "/");
+        }
+
+        log.debug ("WATCH Reconciling {} -> {}", package_uri, instance);
+
+        if (instance == null && package_file.exists ())
+        {
+            metrics.artifactSeen (package_uri);
+        }
+
+        if (!stability.isStable (package_file))
+        {
+            // Still being written, will be checked again while pending
+            log.debug ("Waiting for {} to settle", package_file);
+            return;
+        }
+
+        if (instance == null)
+        {
+            if (package_file.exists ())
+            {
+                new_package_uris.add (package_uri);
+            }
+            else
+            {
+                // Gone before we could install, forget any trouble with it
+                troubled_artifacts.remove (package_uri);
+                metrics.artifactForgotten (package_uri);
+            }
+        }
+        else if (instance.getMainBundle () != null)
+        {
+            Bundle bundle = instance.getMainBundle ();
+            String source = bundleManager.getBundleProperty (bundle, BundleManager.BND_SOURCE, package_uri);
+            refresh_or_remove_artifact (bundle, instance, source, refresh_sources);
+        }
+    }
+
+    private boolean watch_is_reliable (Path dir)
+    {
+        try
+        {
+            FileStore store = Files.getFileStore (dir);
+            String fs_type = store.type ().toLowerCase ();
+
+            if (UNRELIABLE_FS_TYPES.contains (fs_type))
+            {
+                log.info ("Filesystem {} ({}) does not support reliable watching", store, fs_type);
+                return (false);
+            }
+            return (true);
+        }
+        catch (IOException e)
+        {
+            log.warn ("Unable to probe filesystem type for {}: {}", dir, e.getMessage ());
+            return (false);
+        }
+    }
+
+    private void open_watch ()
+    {
+        close_watch ();
+
+        if (!Constants.SCAN_MODE_WATCH.equalsIgnoreCase (scan_mode))
+        {
+            return;
+        }
+
+        Path dir = watched_dir_file.toPath ();
+
+        if (!watch_is_reliable (dir))
+        {
+            log.info ("Deploy directory {} polling {} every {}ms", name, watched_dir_file, thread_poll_ms);
+            return;
+        }
+
+        try
+        {
+            watch_service = FileSystems.getDefault ().newWatchService ();
+            dir.register (watch_service,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+            log.info ("Deploy directory {} watching {} (full reconcile every {}ms)",
+                name, watched_dir_file, reconcile_ms);
+        }
+        catch (Exception e)
+        {
+            log.warn ("Unable to watch {}, falling back to polling: {}", watched_dir_file, e.getMessage ());
+            close_watch ();
+        }
+    }
+
+    private void close_watch ()
+    {
+        if (watch_service != null)
+        {
+            try
+            {
+                watch_service.close ();
+            }
+            catch (IOException ignore) {};
+            watch_service = null;
+        }
+    }
+
+    private void wait_for_changes ()
+        throws InterruptedException
+    {
+        long next_reconcile = last_reconcile + reconcile_ms - System.currentTimeMillis ();
+        long timeout = Math.max (0, Math.min (thread_poll_ms, next_reconcile));
+        WatchKey key;
+
+        try
+        {
+            log.debug ("Watching for {}ms", timeout);
+
+            if ((key = watch_service.poll (timeout, TimeUnit.MILLISECONDS)) == null)
+            {
+                // Nothing happened, check if we are due for a full reconcile
+                if (next_reconcile <= timeout)
+                {
+                    reconcile ();
+                }
+                else
+                {
+                    // A file that stopped changing sends no more events
+                    reconcile_files (new LinkedHashSet<> (stability.getPending ()));
+                }
+                return;
+            }
+        }
+        catch (ClosedWatchServiceException e)
+        {
+            watch_service = null;
+            return;
+        }
+
+        Set<File> touched_files = new LinkedHashSet<> ();
+        boolean overflow = false;
+
+        // Collect everything that is pending, so a burst of events is handled as one pass
+        while (key != null)
+        {
+            for (WatchEvent<?> event: key.pollEvents ())
+            {
+                if (event.kind () == StandardWatchEventKinds.OVERFLOW)
+                {
+                    overflow = true;
+                }
+                else
+                {
+                    touched_files.add (new File (watched_dir_file, event.context ().toString ()));
+                }
+            }
+
+            if (!key.reset ())
+            {
+                // The directory itself is gone or unreachable, fall back to revalidation
+                log.warn ("Watch key for {} is no longer valid", watched_dir_file);
+                close_watch ();
+                watched_dir_file = null;
+                return;
+            }
+            key = watch_service.poll ();
+        }
+
+        if (overflow)
+        {
+            // Events were lost, only a full pass can tell what changed
+            log.debug ("Watch events overflow on {}", watched_dir_file);
+            reconcile ();
+        }
+        else
+        {
+            touched_files.addAll (stability.getPending ());
+            reconcile_files (touched_files);
+        }
+    }
+
+    private void reconcile_files (Set<File> package_files)
+    {
+        if (package_files.isEmpty ())
+        {
+            return;
+        }
+
+        long start_time = System.nanoTime ();
+        List<String> new_package_uris = new ArrayList<> ();
+        List<String> refresh_sources = new ArrayList<> ();
+
+        for (File package_file: package_files)
+        {
+            reconcile_file (package_file, new_package_uris, refresh_sources);
+        }
+        refresh_artifacts (refresh_sources);
+        install_artifacts (new_package_uris);
+        watch_timer.recordSince (start_time);
+    }
+
+    public synchronized void start ()
+    {
+        if (poll_thread == null)
+        {
+            poll_thread = new Thread (this);
+            poll_thread.setName (DeploymentScanner.class.getSimpleName () + "-" + name);
+            poll_thread.start ();
+        }
+    }
+
+    public void stop ()
+    {
+        Thread thread;
+
+        synchronized (this)
+        {
+            thread = poll_thread;
+        }
+
+        if (thread != null)
+        {
+            try
+            {
+                // Stop things, wait at most 10 secs for clean stop
+                thread.interrupt ();
+                thread.join (10000);
+            }
+            catch (InterruptedException ignore) {};
+        }
+        close_watch ();
+    }
+
+    @Override // Runnable
+    public void run ()
+    {
+        long last_complaint = 0;
+        long complain_interval = 60 * 5 * 1000;     // Complain every 5 minutes
+
+        while (!poll_thread.isInterrupted ())
+        {
+            try
+            {
+                // Check whether current scanning dir is still valid
+                if (watched_dir_file != null)
+                {
+                    // We can have race conditions below, however this check helps a lot the lone operator
+                    if (!watched_dir_file.exists() || !watched_dir_file.canRead())
+                    {
+                        watched_dir_file = null;
+                        close_watch ();
+                        log.warn ("Deploy directory {} NOT started: {} is missing or unreadable", name, deploy_dir_config);
+                    }
+                }
+
+                // Try to validate the configured path to use as scan directory
+                if (watched_dir_file == null)
+                {
+                    File dir = new File (deploy_dir_config);
+
+                    if (dir.exists () && dir.canRead ())
+                    {
+                        watched_dir_file = dir;
+                        watched_dir_uri = watched_dir_file.toURI ().toString ();
+                        log.info ("Deploy directory {} started: Scanning {}", name, watched_dir_file);
+
+                        // Watch first, so nothing happening during the initial pass gets lost
+                        open_watch ();
+                        last_reconcile = 0;
+                    }
+                }
+
+                // Do your job
+                if (watched_dir_file != null && watch_service != null)
+                {
+                    // Sleeps until something happens or a full reconcile is due (right away when new)
+                    wait_for_changes ();
+                    continue;
+                }
+                else if (watched_dir_file != null)
+                {
+                    reconcile ();
+                }
+                else
+                {
+                    // Don't be too silent about problems
+                    if (last_complaint + complain_interval < System.currentTimeMillis ())
+                    {
+                        log.warn ("Missing deployment directory: {}", deploy_dir_config);
+                        last_complaint = System.currentTimeMillis ();
+                    }
+                }
+
+                synchronized (this)
+                {
+                    log.debug ("Sleeping for {}ms", thread_poll_ms);
+                    wait (thread_poll_ms);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // Interrupt status is clear, we should break loop
+                break;
+            }
+            catch (Throwable t)
+            {
+                try
+                {
+                    // This will fail if this bundle is uninstalled (zombie)
+                    context.getBundle ();
+                }
+                catch (IllegalStateException e)
+                {
+                    // This bundle has been uninstalled, exiting loop
+                    break;
+                }
+                log.error ("Artifact deployment exception", t);
+            }
+        }
+    }
+}
+
+// EOF
@@ -16,7 +16,6 @@
 
 package org.lucidj.artdeployer;
 
-import org.lucidj.api.artdeployer.Artifact;
 import org.lucidj.api.artdeployer.ArtifactDeployer;
 import org.lucidj.api.artdeployer.BundleManager;
 import org.osgi.framework.FrameworkEvent;
@@ -25,12 +24,10 @@ import org.osgi.framework.startlevel.FrameworkStartLevel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Properties;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.apache.felix.ipojo.annotations.Component;
 import org.apache.felix.ipojo.annotations.Context;
@@ -39,9 +36,24 @@ import org.apache.felix.ipojo.annotations.Invalidate;
 import org.apache.felix.ipojo.annotations.Requires;
 import org.apache.felix.ipojo.annotations.Validate;
 
+//
+// Sets up one DeployDirectory per configured directory and starts each of them once
+// the framework reaches its start level. With artdeployer.deploy.dirs unset there is
+// a single directory taken from artdeployer.deploy.dir, as always. Otherwise it
+// lists directory names, and every name may override the global settings:
+//
+//   artdeployer.deploy.dirs = core, apps
+//   artdeployer.deploy.core.dir = /opt/platform/core
+//   artdeployer.deploy.core.reconcile.ms = 600000
+//   artdeployer.deploy.apps.dir = /opt/platform/apps
+//   artdeployer.deploy.apps.poll.ms = 250
+//   artdeployer.deploy.apps.startlevel = 20
+//   artdeployer.deploy.apps.start = transient
+//   artdeployer.deploy.apps.install.mode = reference
+//
 @Component (immediate = true, publicFactory = false)
 @Instantiate
-public class DeploymentScanner implements Runnable, FrameworkListener
+public class DeploymentScanner implements FrameworkListener
 {
     private final static Logger log = LoggerFactory.getLogger (DeploymentScanner.class);
 
@@ -54,127 +66,69 @@ public class DeploymentScanner implements Runnable, FrameworkListener
     @Requires
     private BundleManager bundleManager;
 
-    private Map<String, Exception> troubled_artifacts = new HashMap<> ();
-
-    private String deploy_dir_config;
-    private String watched_dir_uri;
-    private File watched_dir_file;
-    private Thread poll_thread;
-    private int thread_poll_ms = 1000;
+    @Requires
+    private MetricsRecorder metrics;
 
+    private TroubledArtifacts troubled_artifacts;
+    private List<DeployDirectory> directories = new CopyOnWriteArrayList<> ();
     private FrameworkStartLevel fw_startlevel;
-    private int deploy_startlevel;
 
-    private void poll_repository_for_updates_and_removals ()
+    private int get_int_startlevel(String probable_int)
     {
-        Map<Bundle, Properties> bundles = bundleManager.getBundles ();
-
-        for (Map.Entry<Bundle, Properties> bundle_entry: bundles.entrySet ())
+        try
         {
-            Bundle bundle = bundle_entry.getKey ();
-            String source = bundleManager.getBundleProperty (bundle, BundleManager.BND_SOURCE, null);
-
-            if (source == null || !source.startsWith (watched_dir_uri))
-            {
-                // Not managed by us
-                continue;
-            }
-
-            Artifact instance = artifactDeployer.getArtifact (bundle);
-
-            if (instance == null)
-            {
-                // Not managed by us
-                continue;
-            }
-
-            if (bundleManager.getManifest (source) == null)
-            {
-                // The bundle probably was removed
-                instance.uninstall ();
-            }
-            else // Bundle file exists, check for changes
-            {
-                // We only refresh if the bundle is active
-                if (bundle.getState () == Bundle.ACTIVE)
-                {
-                    try
-                    {
-                        // Refresh the artifact, but ignore if the DeploymentEngine is not available
-                        instance.refresh ();
-                    }
-                    catch (IllegalStateException ignore) {};
-                }
-            }
+            return ((probable_int == null)? -1: Integer.parseInt (probable_int));
+        }
+        catch (NumberFormatException ignore)
+        {
+            return (-1);
         }
     }
 
-    private void locate_added_bundles ()
+    private int get_int_property (String property, int default_value)
     {
-        File[] package_list = watched_dir_file.listFiles ();
+        String value = context.getProperty (property);
 
-        if (package_list == null)
+        try
         {
-            return;
+            return ((value == null)? default_value: Integer.parseInt (value.trim ()));
         }
-
-        for (File package_file: package_list)
+        catch (NumberFormatException e)
         {
-            String package_uri = package_file.toURI ().toString ();
-
-            log.debug ("INSTALL Scanning {} -> {}", package_uri, package_file);
-
-            Artifact instance = artifactDeployer.getArtifact (package_uri);
-
-            if (instance == null) // The bundle isn't installed yet
-            {
-                try
-                {
-                    artifactDeployer.installArtifact (package_uri);
-                    troubled_artifacts.remove (package_uri); // Just in case
-                }
-                catch (Exception e)
-                {
-                    if (!troubled_artifacts.containsKey (package_uri))
-                    {
-                        // Show only first time exceptions
-                        log.warn ("{}", e.getMessage ());
-                    }
-
-                    // Store all last exceptions for every troublesome artifact
-                    troubled_artifacts.put (package_uri, e);
-                }
-            }
+            log.warn ("Invalid value for {}: {}", property, value);
+            return (default_value);
         }
     }
 
-    private int get_int_startlevel(String probable_int)
+    private String get_dir_property (String dir_name, String suffix, String global_property)
     {
+        String value = (dir_name == null)? null:
+            context.getProperty (Constants.ARTIFACT_DEPLOY_PREFIX + dir_name.trim () + suffix);
+        return ((value != null)? value: context.getProperty (global_property));
+    }
+
+    private int get_dir_int_property (String dir_name, String suffix, String global_property, int default_value)
+    {
+        String value = get_dir_property (dir_name, suffix, global_property);
+
         try
         {
-            return ((probable_int == null)? -1: Integer.parseInt (probable_int));
+            return ((value == null)? default_value: Integer.parseInt (value.trim ()));
         }
-        catch (NumberFormatException ignore)
+        catch (NumberFormatException e)
         {
-            return (-1);
+            log.warn ("Invalid value for {} on deploy directory {}: {}", suffix, dir_name, value);
+            return (default_value);
         }
     }
 
-    private void start ()
-    {
-        // Start things
-        poll_thread = new Thread (this);
-        poll_thread.setName (this.getClass ().getSimpleName ());
-        poll_thread.start ();
-    }
-
-    @Validate
-    private void validate ()
+    private DeployDirectory new_deploy_directory (String dir_name)
     {
         // TODO: To be clear, this is crappy. Use ConfigAdmin asap. For now does about the same as Felix main().
+        String deploy_dir_config;
 
         // Try the main property
-        if ((deploy_dir_config = context.getProperty (Constants.ARTIFACT_DEPLOY_DIR_PROPERTY)) == null)
+        if ((deploy_dir_config = get_dir_property (dir_name, ".dir", Constants.ARTIFACT_DEPLOY_DIR_PROPERTY)) == null)
         {
             // We only build a deploy_dir_config if ARTIFACT_DEPLOY_DIR_PROPERTY is NOT set.
             // Our mission is leave a reasonable non null deploy_dir_config.
@@ -182,33 +136,118 @@ public class DeploymentScanner implements Runnable, FrameworkListener
             deploy_dir_config =
                 ((system_home != null)? system_home: ".")
                 + "/"
-                + Constants.ARTIFACT_DEPLOY_DIR_VALUE;
+                + ((dir_name != null)? dir_name.trim (): Constants.ARTIFACT_DEPLOY_DIR_VALUE);
         }
 
         // Do we have to wait for a specific startlevel?
-        String deploy_startlevel_prop = context.getProperty (Constants.ARTIFACT_STARTLEVEL_PROPERTY);
+        int deploy_startlevel = get_int_startlevel (
+            get_dir_property (dir_name, ".startlevel", Constants.ARTIFACT_STARTLEVEL_PROPERTY));
 
-        if ((deploy_startlevel = get_int_startlevel (deploy_startlevel_prop)) == -1)
+        if (deploy_startlevel == -1)
         {
             deploy_startlevel = Constants.ARTIFACT_STARTLEVEL_VALUE;
         }
 
-        // Retrieve framework start level control object
-        fw_startlevel = context.getBundle (0).adapt (FrameworkStartLevel.class);
+        // Watch for changes unless told otherwise, with polling as fallback
+        String scan_mode = get_dir_property (dir_name, ".scan.mode", Constants.ARTIFACT_SCAN_MODE_PROPERTY);
 
-        // Should we start right now?
-        if (deploy_startlevel <= fw_startlevel.getStartLevel ())
+        if (scan_mode == null)
         {
-            start ();
+            scan_mode = Constants.ARTIFACT_SCAN_MODE_VALUE;
+        }
+
+        boolean start_transient = Constants.BUNDLE_START_TRANSIENT.equalsIgnoreCase (
+            get_dir_property (dir_name, ".start", Constants.ARTIFACT_DEPLOY_START_PROPERTY));
+
+        // Null leaves it to the artifact deployer configuration
+        String install_mode = get_dir_property (dir_name, ".install.mode", Constants.ARTIFACT_INSTALL_MODE_PROPERTY);
+
+        return (new DeployDirectory ((dir_name != null)? dir_name.trim (): Constants.ARTIFACT_DEPLOY_DIR_VALUE,
+            deploy_dir_config, deploy_startlevel, start_transient, install_mode, scan_mode,
+            get_dir_int_property (dir_name, ".poll.ms",
+                Constants.ARTIFACT_POLL_MS_PROPERTY, Constants.ARTIFACT_POLL_MS_VALUE),
+            get_dir_int_property (dir_name, ".reconcile.ms",
+                Constants.ARTIFACT_RECONCILE_MS_PROPERTY, Constants.ARTIFACT_RECONCILE_MS_VALUE),
+            get_dir_int_property (dir_name, ".stable.ms",
+                Constants.ARTIFACT_STABLE_MS_PROPERTY, Constants.ARTIFACT_STABLE_MS_VALUE),
+            context, artifactDeployer, bundleManager, metrics, troubled_artifacts));
+    }
+
+    private boolean start_reached_directories ()
+    {
+        boolean all_started = true;
+
+        for (DeployDirectory directory: directories)
+        {
+            if (directory.getStartLevel () <= fw_startlevel.getStartLevel ())
+            {
+                if (!directory.isStarted ())
+                {
+                    log.info ("Startlevel reached for deploy directory {}: {}",
+                        directory.getName (), directory.getStartLevel ());
+                    directory.start ();
+                }
+            }
+            else
+            {
+                all_started = false;
+            }
+        }
+        return (all_started);
+    }
+
+    public List<DeployDirectory> getDirectories ()
+    {
+        return (directories);
+    }
+
+    @Validate
+    private void validate ()
+    {
+        // Failing artifacts are retried with backoff
+        troubled_artifacts = new TroubledArtifacts (
+            get_int_property (Constants.ARTIFACT_TROUBLED_MAX_PROPERTY, Constants.ARTIFACT_TROUBLED_MAX_VALUE),
+            get_int_property (Constants.ARTIFACT_RETRY_MS_PROPERTY, Constants.ARTIFACT_RETRY_MS_VALUE),
+            get_int_property (Constants.ARTIFACT_RETRY_MAX_MS_PROPERTY, Constants.ARTIFACT_RETRY_MAX_MS_VALUE));
+
+        String dir_names = context.getProperty (Constants.ARTIFACT_DEPLOY_DIRS_PROPERTY);
+        List<DeployDirectory> new_directories = new ArrayList<> ();
+
+        if (dir_names == null || dir_names.trim ().isEmpty ())
+        {
+            new_directories.add (new_deploy_directory (null));
         }
         else
         {
-            // Let's listen for startlevel changes
+            for (String dir_name: dir_names.split (","))
+            {
+                if (!dir_name.trim ().isEmpty ())
+                {
+                    new_directories.add (new_deploy_directory (dir_name));
+                }
+            }
+        }
+        directories.addAll (new_directories);
+
+        metrics.addGauge ("scan.directories", directories::size);
+        metrics.addGauge ("scan.files", () -> directories.stream ().mapToLong (DeployDirectory::getFileCount).sum ());
+        metrics.addGauge ("scan.pending-files", () -> directories.stream ().mapToLong (DeployDirectory::getPendingCount).sum ());
+        metrics.addGauge ("scan.troubled-artifacts", troubled_artifacts::size);
+
+        // Retrieve framework start level control object
+        fw_startlevel = context.getBundle (0).adapt (FrameworkStartLevel.class);
+
+        // Start whatever we can right now and listen for startlevel changes for the rest
+        if (!start_reached_directories ())
+        {
             context.addFrameworkListener (this);
-            log.info ("DeploymentScanner waiting for start level {}", deploy_startlevel);
         }
 
-        log.info ("DeploymentScanner configured dir: {}", deploy_dir_config);
+        for (DeployDirectory directory: directories)
+        {
+            log.info ("DeploymentScanner configured dir {}: {}{}", directory.getName (), directory.getDirectory (),
+                directory.isStarted ()? "": " (waiting for start level " + directory.getStartLevel () + ")");
+        }
     }
 
     @Override
@@ -217,12 +256,10 @@ public class DeploymentScanner implements Runnable, FrameworkListener
         if (frameworkEvent.getType () == FrameworkEvent.STARTED
             || frameworkEvent.getType () == FrameworkEvent.STARTLEVEL_CHANGED)
         {
-            if (deploy_startlevel <= fw_startlevel.getStartLevel ())
+            if (start_reached_directories ())
             {
                 // We don't need to listen anymore
-                log.info ("Startlevel reached: {}", deploy_startlevel);
                 context.removeFrameworkListener (this);
-                start ();
             }
         }
     }
@@ -230,92 +267,15 @@ public class DeploymentScanner implements Runnable, FrameworkListener
     @Invalidate
     private void invalidate ()
     {
-        try
-        {
-            // Stop things, wait at most 10 secs for clean stop
-            poll_thread.interrupt ();
-            poll_thread.join (10000);
-        }
-        catch (InterruptedException ignore) {};
-        log.info ("DeploymentScanner stopped");
-    }
-
-    @Override // Runnable
-    public void run ()
-    {
-        long last_complaint = 0;
-        long complain_interval = 60 * 5 * 1000;     // Complain every 5 minutes
+        context.removeFrameworkListener (this);
 
-        while (!poll_thread.isInterrupted ())
+        // Waits for every scan thread to finish
+        for (DeployDirectory directory: directories)
         {
-            try
-            {
-                // Check whether current scanning dir is still valid
-                if (watched_dir_file != null)
-                {
-                    // We can have race conditions below, however this check helps a lot the lone operator
-                    if (!watched_dir_file.exists() || !watched_dir_file.canRead())
-                    {
-                        watched_dir_file = null;
-                        log.warn ("DeploymentScanner NOT started: Directory {} is missing or unreadable", deploy_dir_config);
-                    }
-                }
-
-                // Try to validate the configured path to use as scan directory
-                if (watched_dir_file == null)
-                {
-                    File dir = new File (deploy_dir_config);
-
-                    if (dir.exists () && dir.canRead ())
-                    {
-                        watched_dir_file = dir;
-                        watched_dir_uri = watched_dir_file.toURI ().toString ();
-                        log.info ("DeploymentScanner started: Scanning directory {}", watched_dir_file);
-                    }
-                }
-
-                // Do your job
-                if (watched_dir_file != null)
-                {
-                    poll_repository_for_updates_and_removals ();
-                    locate_added_bundles ();
-                }
-                else
-                {
-                    // Don't be too silent about problems
-                    if (last_complaint + complain_interval < System.currentTimeMillis ())
-                    {
-                        log.warn ("Missing deployment directory: {}", deploy_dir_config);
-                        last_complaint = System.currentTimeMillis ();
-                    }
-                }
-
-                synchronized (this)
-                {
-                    log.debug ("Sleeping for {}ms", thread_poll_ms);
-                    wait (thread_poll_ms);
-                }
-            }
-            catch (InterruptedException e)
-            {
-                // Interrupt status is clear, we should break loop
-                break;
-            }
-            catch (Throwable t)
-            {
-                try
-                {
-                    // This will fail if this bundle is uninstalled (zombie)
-                    context.getBundle ();
-                }
-                catch (IllegalStateException e)
-                {
-                    // This bundle has been uninstalled, exiting loop
-                    break;
-                }
-                log.error ("Artifact deployment exception", t);
-            }
+            directory.stop ();
         }
+        directories.clear ();
+        log.info ("DeploymentScanner stopped");
     }
 }
 
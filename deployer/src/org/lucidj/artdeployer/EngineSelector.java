@@ -0,0 +1,249 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import org.lucidj.api.artdeployer.DeploymentEngine;
+
+import java.io.File;
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+//
+// Picks the DeploymentEngine for an artifact. Engines may declare the extensions and
+// MIME types they handle as service properties, so only the relevant ones are asked
+// via compatibleArtifact(). The choice is cached per artifact fingerprint (location,
+// size and last modified) and the whole cache is dropped whenever engines come or go.
+//
+public class EngineSelector
+{
+    private final Map<String, EngineEntry> engines = new ConcurrentHashMap<> ();
+    private final Map<String, Selection> selections = new ConcurrentHashMap<> ();
+    private final AtomicLong generation = new AtomicLong ();
+
+    private final LongAdder hit_count = new LongAdder ();
+    private final LongAdder miss_count = new LongAdder ();
+
+    private static Set<String> get_values (Object property)
+    {
+        if (property == null)
+        {
+            return (Collections.emptySet ());
+        }
+
+        Collection<?> raw_values;
+
+        if (property instanceof String[])
+        {
+            raw_values = Arrays.asList ((String[])property);
+        }
+        else if (property instanceof Collection)
+        {
+            raw_values = (Collection<?>)property;
+        }
+        else
+        {
+            raw_values = Arrays.asList (property.toString ().split (","));
+        }
+
+        Set<String> values = new HashSet<> ();
+
+        for (Object raw_value: raw_values)
+        {
+            String value = String.valueOf (raw_value).trim ().toLowerCase (Locale.ROOT);
+
+            // Accept both "jar" and ".jar"
+            if (value.startsWith ("."))
+            {
+                value = value.substring (1);
+            }
+
+            if (!value.isEmpty ())
+            {
+                values.add (value);
+            }
+        }
+        return (values);
+    }
+
+    private static String get_extension (String location)
+    {
+        // Exploded artifacts are directories, like file:/deploy/package.leap/
+        String name = location.endsWith ("/")? location.substring (0, location.length () - 1): location;
+        name = name.substring (name.lastIndexOf ('/') + 1);
+        int dot = name.lastIndexOf ('.');
+        return ((dot == -1)? "": name.substring (dot + 1).toLowerCase (Locale.ROOT));
+    }
+
+    private static String get_mime_type (String location)
+    {
+        // Only a table lookup, the artifact isn't touched
+        String mime_type = URLConnection.getFileNameMap ().getContentTypeFor (location);
+        return ((mime_type == null)? null: mime_type.toLowerCase (Locale.ROOT));
+    }
+
+    public void addEngine (DeploymentEngine engine, Map<String, Object> service_properties, Histogram compatible_timer)
+    {
+        Object extensions = (service_properties == null)? null: service_properties.get (DeploymentEngine.ENGINE_EXTENSIONS);
+        Object mime_types = (service_properties == null)? null: service_properties.get (DeploymentEngine.ENGINE_MIME_TYPES);
+        engines.put (engine.getEngineName (), new EngineEntry (engine, get_values (extensions), get_values (mime_types), compatible_timer));
+        invalidate ();
+    }
+
+    public void removeEngine (DeploymentEngine engine)
+    {
+        engines.remove (engine.getEngineName ());
+        invalidate ();
+    }
+
+    public DeploymentEngine getEngineByName (String engine_name)
+    {
+        EngineEntry entry = (engine_name == null)? null: engines.get (engine_name);
+        return ((entry == null)? null: entry.engine);
+    }
+
+    public void invalidate ()
+    {
+        generation.incrementAndGet ();
+        selections.clear ();
+    }
+
+    private DeploymentEngine select_engine (String location)
+    {
+        String extension = get_extension (location);
+        String mime_type = null;
+        DeploymentEngine found_engine = null;
+        int level, found_level = 0;
+
+        for (EngineEntry entry: engines.values ())
+        {
+            if (!entry.accepts_anything ())
+            {
+                if (mime_type == null && !entry.mime_types.isEmpty ())
+                {
+                    String guessed = get_mime_type (location);
+                    mime_type = (guessed == null)? "": guessed;
+                }
+
+                if (!entry.extensions.contains (extension) && !entry.mime_types.contains (mime_type))
+                {
+                    // Not interested, skip the (possibly expensive) compatibility check
+                    continue;
+                }
+            }
+
+            long start_time = System.nanoTime ();
+            level = entry.engine.compatibleArtifact (location);
+            entry.compatible_timer.recordSince (start_time);
+
+            if (level > found_level)
+            {
+                found_engine = entry.engine;
+                found_level = level;
+            }
+        }
+        return (found_engine);
+    }
+
+    public DeploymentEngine getEngine (String location, File artifact_file)
+    {
+        String fingerprint = (artifact_file == null)? null: artifact_file.length () + ":" + artifact_file.lastModified ();
+        Selection selection = selections.get (location);
+
+        if (fingerprint != null && selection != null && selection.fingerprint.equals (fingerprint))
+        {
+            hit_count.increment ();
+            return (selection.engine);
+        }
+
+        miss_count.increment ();
+        long current_generation = generation.get ();
+        DeploymentEngine engine = select_engine (location);
+
+        if (fingerprint != null && engine != null)
+        {
+            selections.put (location, new Selection (fingerprint, engine));
+
+            // Engines changed while we were selecting, this choice may be stale
+            if (generation.get () != current_generation)
+            {
+                selections.remove (location);
+            }
+        }
+        return (engine);
+    }
+
+    public long getHitCount ()
+    {
+        return (hit_count.sum ());
+    }
+
+    public long getMissCount ()
+    {
+        return (miss_count.sum ());
+    }
+
+    @Override
+    public String toString ()
+    {
+        return ("EngineSelector(engines=" + engines.size () + ", cached=" + selections.size ()
+            + ", hits=" + getHitCount () + ", misses=" + getMissCount () + ")");
+    }
+
+    private static class EngineEntry
+    {
+        final DeploymentEngine engine;
+        final Set<String> extensions;
+        final Set<String> mime_types;
+        final Histogram compatible_timer;
+
+        EngineEntry (DeploymentEngine engine, Set<String> extensions, Set<String> mime_types, Histogram compatible_timer)
+        {
+            this.engine = engine;
+            this.extensions = extensions;
+            this.mime_types = mime_types;
+            this.compatible_timer = compatible_timer;
+        }
+
+        boolean accepts_anything ()
+        {
+            return (extensions.isEmpty () && mime_types.isEmpty ());
+        }
+    }
+
+    private static class Selection
+    {
+        final String fingerprint;
+        final DeploymentEngine engine;
+
+        Selection (String fingerprint, DeploymentEngine engine)
+        {
+            this.fingerprint = fingerprint;
+            this.engine = engine;
+        }
+    }
+}
+
+// EOF
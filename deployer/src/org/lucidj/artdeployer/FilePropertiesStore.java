@@ -0,0 +1,202 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+//
+// The classic layout: one <sanitized location>.properties file per location.
+//
+public class FilePropertiesStore implements PropertiesStore
+{
+    private final static Logger log = LoggerFactory.getLogger (FilePropertiesStore.class);
+
+    public final static String FILE_SUFFIX = ".properties";
+
+    // Below this the pool costs more than it saves
+    private final static int PARALLEL_THRESHOLD = 64;
+
+    private final File cache_dir;
+    private final int load_threads;
+
+    public FilePropertiesStore (File cache_dir, int load_threads)
+    {
+        this.cache_dir = cache_dir;
+        this.load_threads = (load_threads > 0)?
+            load_threads: Math.min (Runtime.getRuntime ().availableProcessors (), 8);
+    }
+
+    public FilePropertiesStore (File cache_dir)
+    {
+        this (cache_dir, 0);
+    }
+
+    public File getDataFile (String location)
+    {
+        // <Sanitized location>.properties
+        return (new File (cache_dir, location.replaceAll ("\\p{P}", "_") + FILE_SUFFIX));
+    }
+
+    public File[] listDataFiles ()
+    {
+        return (cache_dir.listFiles ((dir, name) -> name.endsWith (FILE_SUFFIX)));
+    }
+
+    private void load_file (File bundle_data_file, Map<String, Properties> loaded)
+    {
+        try (InputStream in = new FileInputStream (bundle_data_file))
+        {
+            Properties properties = new Properties ();
+            properties.load (in);
+
+            if (properties.containsKey (Constants.PROP_LOCATION))
+            {
+                loaded.put (properties.getProperty (Constants.PROP_LOCATION), properties);
+            }
+            else
+            {
+                log.error ("Internal error: Missing bundle location from {}", bundle_data_file);
+            }
+        }
+        catch (Exception e)
+        {
+            log.error ("Error reading deployment properties from {}", bundle_data_file, e);
+        }
+    }
+
+    @Override // PropertiesStore
+    public Map<String, Properties> load ()
+    {
+        Map<String, Properties> loaded = new ConcurrentHashMap<> ();
+        File[] bundle_list = listDataFiles ();
+
+        if (bundle_list == null)
+        {
+            log.error ("Error reading cache {}", cache_dir);
+            return (loaded);
+        }
+
+        // TODO: PROP FILE CLEANUP FOR UNUSED BUNDLES (LastModified > N minutes)
+        if (load_threads == 1 || bundle_list.length < PARALLEL_THRESHOLD)
+        {
+            for (File bundle_data_file: bundle_list)
+            {
+                load_file (bundle_data_file, loaded);
+            }
+            return (loaded);
+        }
+
+        // Spread the files over a bounded fork-join pool, every file still reports its own errors
+        ForkJoinPool pool = new ForkJoinPool (load_threads);
+
+        try
+        {
+            pool.submit (() -> Arrays.stream (bundle_list).parallel ().forEach (f -> load_file (f, loaded))).get ();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread ().interrupt ();
+            log.error ("Interrupted loading cache {}", cache_dir);
+        }
+        catch (ExecutionException e)
+        {
+            log.error ("Error loading cache {}", cache_dir, e.getCause ());
+        }
+        finally
+        {
+            pool.shutdown ();
+        }
+        return (loaded);
+    }
+
+    @Override // PropertiesStore
+    public boolean write (String location, Properties properties)
+    {
+        File data_file = getDataFile (location);
+        File temp_file = new File (data_file.getParentFile (), data_file.getName () + ".tmp");
+
+        try
+        {
+            try (OutputStream out = new FileOutputStream (temp_file))
+            {
+                properties.store (out, null);
+            }
+
+            try
+            {
+                // Readers never see a half written file
+                Files.move (temp_file.toPath (), data_file.toPath (),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move (temp_file.toPath (), data_file.toPath (), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return (true);
+        }
+        catch (IOException e)
+        {
+            log.error ("Exception storing bundle properties: {}", location, e);
+            temp_file.delete ();
+            return (false);
+        }
+    }
+
+    @Override // PropertiesStore
+    public boolean remove (String location)
+    {
+        File data_file = getDataFile (location);
+
+        if (data_file.delete () || !data_file.exists ())
+        {
+            return (true);
+        }
+        log.error ("Unable to remove bundle properties: {}", data_file);
+        return (false);
+    }
+
+    @Override // PropertiesStore
+    public void sync ()
+    {
+        // Every file is complete once written
+    }
+
+    @Override // PropertiesStore
+    public void close ()
+    {
+        // Nothing kept open
+    }
+}
+
+// EOF
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import org.lucidj.api.artdeployer.TimerSummary;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+//
+// Latency histogram with fixed buckets, from 10us to 1min. Recording is a bucket
+// search plus a few LongAdder increments: no locks and no allocation.
+//
+public class Histogram
+{
+    // Bucket upper bounds, in microseconds; the last bucket takes everything above
+    private final static long[] BOUNDS_US =
+    {
+        10, 25, 50, 100, 250, 500,
+        1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000,
+        1000000, 2500000, 5000000, 10000000, 30000000, 60000000
+    };
+
+    private final LongAdder[] buckets = new LongAdder [BOUNDS_US.length + 1];
+    private final LongAdder total_ns = new LongAdder ();
+    private final LongAccumulator max_ns = new LongAccumulator (Long::max, 0);
+
+    public Histogram ()
+    {
+        for (int i = 0; i < buckets.length; i++)
+        {
+            buckets [i] = new LongAdder ();
+        }
+    }
+
+    public void record (long elapsed_ns)
+    {
+        long elapsed_us = elapsed_ns / 1000;
+        int i = 0;
+
+        while (i < BOUNDS_US.length && elapsed_us > BOUNDS_US [i])
+        {
+            i++;
+        }
+        buckets [i].increment ();
+        total_ns.add (elapsed_ns);
+        max_ns.accumulate (elapsed_ns);
+    }
+
+    public void recordSince (long start_ns)
+    {
+        record (System.nanoTime () - start_ns);
+    }
+
+    private static double to_ms (long ns)
+    {
+        return (ns / (double)TimeUnit.MILLISECONDS.toNanos (1));
+    }
+
+    private double get_percentile (long[] counts, long total, double percentile, double max_ms)
+    {
+        long threshold = (long)Math.ceil (total * percentile);
+        long seen = 0;
+
+        for (int i = 0; i < counts.length; i++)
+        {
+            if ((seen += counts [i]) >= threshold)
+            {
+                // Upper bound of the bucket, but never above what we actually saw
+                return ((i < BOUNDS_US.length)? Math.min (BOUNDS_US [i] / 1000.0, max_ms): max_ms);
+            }
+        }
+        return (max_ms);
+    }
+
+    public TimerSummary getSummary ()
+    {
+        long[] counts = new long [buckets.length];
+        long total = 0;
+
+        for (int i = 0; i < buckets.length; i++)
+        {
+            total += (counts [i] = buckets [i].sum ());
+        }
+
+        double max_ms = to_ms (max_ns.get ());
+
+        if (total == 0)
+        {
+            return (new TimerSummary (0, 0, 0, 0, 0, 0));
+        }
+        return (new TimerSummary (total, to_ms (total_ns.sum ()), max_ms,
+            get_percentile (counts, total, 0.50, max_ms),
+            get_percentile (counts, total, 0.90, max_ms),
+            get_percentile (counts, total, 0.99, max_ms)));
+    }
+
+    public void reset ()
+    {
+        for (LongAdder bucket: buckets)
+        {
+            bucket.reset ();
+        }
+        total_ns.reset ();
+        max_ns.reset ();
+    }
+}
+
+// EOF
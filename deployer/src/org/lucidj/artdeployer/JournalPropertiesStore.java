@@ -0,0 +1,539 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+//
+// All bundle properties in a single append-only journal. Each write appends the full
+// property set of one location, each remove a tombstone; the last record of a location wins. Startup reads the
+// journal into memory in one go and parses it sequentially, and once dead records
+// dominate the file it's compacted into a new journal holding only the latest record
+// of every location. The journal is never memory mapped: a mapping lives until it is
+// garbage collected, and meanwhile Windows refuses to truncate or replace the file.
+//
+//   Journal: MAGIC(int) VERSION(int) Record*
+//   Record:  LENGTH(int) CRC32(int) Payload[LENGTH]
+//   Payload: PUT(byte) LOCATION(str) COUNT(int) (KEY(str) VALUE(str))*
+//          | REMOVE(byte) LOCATION(str)
+//   str:     LENGTH(int) UTF-8[LENGTH]
+//
+// A torn or corrupt tail (crash during append) is detected by length/CRC and cut off.
+// A journal we can't even recognize is set aside and a new one started.
+//
+public class JournalPropertiesStore implements PropertiesStore
+{
+    private final static Logger log = LoggerFactory.getLogger (JournalPropertiesStore.class);
+
+    public final static String JOURNAL_FILE = "artdeployer.journal";
+
+    private final static int JOURNAL_MAGIC = 0x41444A4C;    // "ADJL"
+    private final static int JOURNAL_VERSION = 1;
+    private final static int HEADER_SIZE = 8;
+    private final static int RECORD_HEADER_SIZE = 8;
+    private final static byte RECORD_PUT = 1;
+    private final static byte RECORD_REMOVE = 2;
+
+    private final File cache_dir;
+    private final File journal_file;
+    private final long compact_min_bytes;
+
+    private FileChannel channel;
+    private long journal_size;
+    private long live_bytes;
+    private boolean dirty;
+    private boolean closed;
+
+    // Latest encoded record of every location, used for compaction
+    private final Map<String, byte[]> live_records = new HashMap<> ();
+
+    public JournalPropertiesStore (File cache_dir, long compact_min_bytes)
+    {
+        this.cache_dir = cache_dir;
+        this.journal_file = new File (cache_dir, JOURNAL_FILE);
+        this.compact_min_bytes = compact_min_bytes;
+    }
+
+    private static void write_string (DataOutputStream out, String value)
+        throws IOException
+    {
+        byte[] utf = value.getBytes (StandardCharsets.UTF_8);
+        out.writeInt (utf.length);
+        out.write (utf);
+    }
+
+    private static byte[] encode_record (String location, Properties properties)
+        throws IOException
+    {
+        ByteArrayOutputStream payload_bytes = new ByteArrayOutputStream (512);
+        DataOutputStream payload = new DataOutputStream (payload_bytes);
+
+        if (properties == null)
+        {
+            payload.writeByte (RECORD_REMOVE);
+            write_string (payload, location);
+        }
+        else
+        {
+            payload.writeByte (RECORD_PUT);
+            write_string (payload, location);
+            payload.writeInt (properties.size ());
+
+            for (String key: properties.stringPropertyNames ())
+            {
+                write_string (payload, key);
+                write_string (payload, properties.getProperty (key));
+            }
+        }
+        payload.flush ();
+
+        byte[] data = payload_bytes.toByteArray ();
+        CRC32 crc = new CRC32 ();
+        crc.update (data, 0, data.length);
+
+        ByteBuffer record = ByteBuffer.allocate (RECORD_HEADER_SIZE + data.length);
+        record.putInt (data.length);
+        record.putInt ((int)crc.getValue ());
+        record.put (data);
+        return (record.array ());
+    }
+
+    private static String read_string (ByteBuffer buffer)
+    {
+        int length = buffer.getInt ();
+
+        if (length < 0 || length > buffer.remaining ())
+        {
+            throw (new BufferUnderflowException ());
+        }
+
+        byte[] utf = new byte [length];
+        buffer.get (utf);
+        return (new String (utf, StandardCharsets.UTF_8));
+    }
+
+    private long read_journal (Map<String, Properties> loaded)
+        throws IOException
+    {
+        try (FileChannel read_channel = FileChannel.open (journal_file.toPath (), StandardOpenOption.READ))
+        {
+            long size = read_channel.size ();
+
+            if (size < HEADER_SIZE)
+            {
+                return (0);
+            }
+
+            if (size > Integer.MAX_VALUE)
+            {
+                throw (new IOException ("Journal too big: " + journal_file));
+            }
+
+            // One read into the heap, then one sequential pass over it
+            ByteBuffer journal = ByteBuffer.allocate ((int)size);
+
+            while (journal.hasRemaining ())
+            {
+                if (read_channel.read (journal, journal.position ()) < 0)
+                {
+                    break;
+                }
+            }
+            journal.flip ();
+
+            if (journal.remaining () < HEADER_SIZE
+                || journal.getInt () != JOURNAL_MAGIC || journal.getInt () != JOURNAL_VERSION)
+            {
+                return (-1);
+            }
+
+            CRC32 crc = new CRC32 ();
+            int good_end = HEADER_SIZE;
+
+            while (journal.remaining () >= RECORD_HEADER_SIZE)
+            {
+                int length = journal.getInt ();
+                int record_crc = journal.getInt ();
+
+                if (length <= 0 || length > journal.remaining ())
+                {
+                    break;
+                }
+
+                ByteBuffer payload = journal.slice ();
+                payload.limit (length);
+                crc.reset ();
+                crc.update (payload.duplicate ());
+
+                if ((int)crc.getValue () != record_crc)
+                {
+                    break;
+                }
+
+                try
+                {
+                    byte type = payload.get ();
+
+                    if (type == RECORD_REMOVE)
+                    {
+                        // Dropped from the live set, compaction won't carry it over
+                        String location = read_string (payload);
+                        loaded.remove (location);
+                        replace_live_record (location, null);
+                    }
+                    else if (type == RECORD_PUT)
+                    {
+                        String location = read_string (payload);
+                        int count = payload.getInt ();
+                        Properties properties = new Properties ();
+
+                        for (int i = 0; i < count; i++)
+                        {
+                            String key = read_string (payload);
+                            properties.setProperty (key, read_string (payload));
+                        }
+                        loaded.put (location, properties);
+
+                        // Keep the encoded record around for compaction
+                        byte[] record = new byte [RECORD_HEADER_SIZE + length];
+                        journal.position (good_end);
+                        journal.get (record);
+                        replace_live_record (location, record);
+                    }
+                }
+                catch (BufferUnderflowException e)
+                {
+                    break;
+                }
+
+                good_end += RECORD_HEADER_SIZE + length;
+                journal.position (good_end);
+            }
+
+            if (good_end < size)
+            {
+                log.warn ("Discarding {} bytes of incomplete journal tail from {}", size - good_end, journal_file);
+            }
+            return (good_end);
+        }
+    }
+
+    private void replace_live_record (String location, byte[] record)
+    {
+        byte[] previous = (record == null)? live_records.remove (location): live_records.put (location, record);
+        live_bytes += (record == null? 0: record.length) - (previous == null? 0: previous.length);
+    }
+
+    private void write_fully (FileChannel target, ByteBuffer buffer, long position)
+        throws IOException
+    {
+        while (buffer.hasRemaining ())
+        {
+            position += target.write (buffer, position);
+        }
+    }
+
+    private ByteBuffer journal_header ()
+    {
+        ByteBuffer header = ByteBuffer.allocate (HEADER_SIZE);
+        header.putInt (JOURNAL_MAGIC);
+        header.putInt (JOURNAL_VERSION);
+        header.flip ();
+        return (header);
+    }
+
+    private void move_into_place (File source, File target)
+        throws IOException
+    {
+        try
+        {
+            Files.move (source.toPath (), target.toPath (),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move (source.toPath (), target.toPath (), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    //
+    // Writes a fresh journal holding only the live records, then swaps it in.
+    //
+    private void rewrite_journal ()
+        throws IOException
+    {
+        File temp_file = new File (cache_dir, JOURNAL_FILE + ".tmp");
+        long position = 0;
+
+        try (FileChannel temp_channel = FileChannel.open (temp_file.toPath (),
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            ByteBuffer header = journal_header ();
+            write_fully (temp_channel, header, position);
+            position += HEADER_SIZE;
+
+            for (byte[] record: live_records.values ())
+            {
+                write_fully (temp_channel, ByteBuffer.wrap (record), position);
+                position += record.length;
+            }
+            temp_channel.force (true);
+        }
+
+        if (channel != null)
+        {
+            channel.close ();
+        }
+        move_into_place (temp_file, journal_file);
+        channel = FileChannel.open (journal_file.toPath (), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        journal_size = position;
+    }
+
+    private void migrate_legacy_files (Map<String, Properties> loaded)
+        throws IOException
+    {
+        FilePropertiesStore legacy_store = new FilePropertiesStore (cache_dir);
+        File[] legacy_files = legacy_store.listDataFiles ();
+
+        if (legacy_files == null || legacy_files.length == 0)
+        {
+            return;
+        }
+
+        log.info ("Migrating {} property files into {}", legacy_files.length, journal_file);
+        loaded.putAll (legacy_store.load ());
+
+        for (Map.Entry<String, Properties> entry: loaded.entrySet ())
+        {
+            replace_live_record (entry.getKey (), encode_record (entry.getKey (), entry.getValue ()));
+        }
+
+        // The journal must be safe on disk before we retire the old files
+        rewrite_journal ();
+
+        File migrated_dir = new File (cache_dir, "migrated");
+
+        if (!migrated_dir.isDirectory () && !migrated_dir.mkdirs ())
+        {
+            log.warn ("Unable to create {}, legacy files left in place", migrated_dir);
+            return;
+        }
+
+        for (File legacy_file: legacy_files)
+        {
+            move_into_place (legacy_file, new File (migrated_dir, legacy_file.getName ()));
+        }
+    }
+
+    @Override // PropertiesStore
+    public synchronized Map<String, Properties> load ()
+    {
+        Map<String, Properties> loaded = new HashMap<> ();
+
+        live_records.clear ();
+        live_bytes = 0;
+        closed = false;
+
+        try
+        {
+            if (!journal_file.exists ())
+            {
+                // First run on this backend, bring over whatever the file store has
+                migrate_legacy_files (loaded);
+            }
+            else
+            {
+                long good_end = read_journal (loaded);
+
+                if (good_end < 0)
+                {
+                    // Not a journal we know, keep it for inspection and start over
+                    File corrupt_file = new File (cache_dir, JOURNAL_FILE + ".corrupt");
+                    log.error ("Invalid journal header in {}, moved to {}", journal_file, corrupt_file);
+                    move_into_place (journal_file, corrupt_file);
+                    migrate_legacy_files (loaded);
+                }
+                else
+                {
+                    channel = FileChannel.open (journal_file.toPath (), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+                    if (good_end < HEADER_SIZE)
+                    {
+                        rewrite_journal ();
+                    }
+                    else
+                    {
+                        // Cut the torn tail so new records append right after the last good one
+                        channel.truncate (good_end);
+                        journal_size = good_end;
+                    }
+                }
+            }
+
+            if (channel == null)
+            {
+                rewrite_journal ();
+            }
+            log.info ("Journal {} loaded: {} locations, {} bytes", journal_file, loaded.size (), journal_size);
+        }
+        catch (IOException e)
+        {
+            log.error ("Error reading deployment journal {}", journal_file, e);
+        }
+        return (loaded);
+    }
+
+    private void append_record (String location, Properties properties)
+        throws IOException
+    {
+        if (channel == null)
+        {
+            // Load failed, try a fresh journal with whatever we have
+            log.warn ("Journal {} not open, starting a new one", journal_file);
+            rewrite_journal ();
+        }
+
+        byte[] record = encode_record (location, properties);
+        write_fully (channel, ByteBuffer.wrap (record), journal_size);
+        journal_size += record.length;
+        replace_live_record (location, (properties == null)? null: record);
+        dirty = true;
+    }
+
+    @Override // PropertiesStore
+    public synchronized boolean write (String location, Properties properties)
+    {
+        if (closed)
+        {
+            // Never reopened behind the owner's back
+            log.warn ("Journal {} closed, properties of {} not stored", journal_file, location);
+            return (false);
+        }
+
+        try
+        {
+            append_record (location, properties);
+            return (true);
+        }
+        catch (IOException e)
+        {
+            log.error ("Exception storing bundle properties: {}", location, e);
+            return (false);
+        }
+    }
+
+    @Override // PropertiesStore
+    public synchronized boolean remove (String location)
+    {
+        if (closed)
+        {
+            log.warn ("Journal {} closed, properties of {} not removed", journal_file, location);
+            return (false);
+        }
+
+        if (!live_records.containsKey (location))
+        {
+            // Never stored, or removed already
+            return (true);
+        }
+
+        try
+        {
+            append_record (location, null);
+            return (true);
+        }
+        catch (IOException e)
+        {
+            log.error ("Exception removing bundle properties: {}", location, e);
+            return (false);
+        }
+    }
+
+    @Override // PropertiesStore
+    public synchronized void sync ()
+    {
+        if (channel == null || !dirty)
+        {
+            return;
+        }
+
+        try
+        {
+            channel.force (false);
+            dirty = false;
+
+            // Compact once dead records take more than half of a non-trivial journal
+            if (journal_size > compact_min_bytes && journal_size - HEADER_SIZE > 2 * live_bytes)
+            {
+                long old_size = journal_size;
+                rewrite_journal ();
+                log.debug ("Journal compacted from {} to {} bytes", old_size, journal_size);
+            }
+        }
+        catch (IOException e)
+        {
+            log.error ("Exception syncing deployment journal {}", journal_file, e);
+        }
+    }
+
+    @Override // PropertiesStore
+    public synchronized void close ()
+    {
+        sync ();
+        closed = true;
+
+        if (channel != null)
+        {
+            try
+            {
+                channel.close ();
+            }
+            catch (IOException ignore) {};
+            channel = null;
+        }
+    }
+
+    public synchronized long getJournalSize ()
+    {
+        return (journal_size);
+    }
+
+    public synchronized long getLiveBytes ()
+    {
+        return (live_bytes);
+    }
+}
+
+// EOF
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+//
+// Runs bundle lifecycle work away from the framework event dispatch. Every bundle
+// has its own lane: work for one bundle runs strictly in the order it was queued,
+// never two at once, while different bundles proceed in parallel on a shared pool.
+// Lanes exist only while they have work, and a busy lane yields its thread after a
+// few tasks so one chatty bundle can't hold up everybody else.
+//
+// With no threads configured the work runs right away on the calling thread.
+//
+public class LifecycleExecutor
+{
+    private final static Logger log = LoggerFactory.getLogger (LifecycleExecutor.class);
+
+    private final static int LANE_BATCH = 16;
+    private final static long CLOSE_TIMEOUT_MS = 10000;
+
+    private final ExecutorService pool;
+    private final Map<Long, Lane> lanes = new ConcurrentHashMap<> ();
+    private final AtomicInteger backlog = new AtomicInteger ();
+    private final LongAdder failures = new LongAdder ();
+    private final Histogram queue_timer;
+    private final Histogram task_timer;
+
+    public LifecycleExecutor (int threads, Histogram queue_timer, Histogram task_timer)
+    {
+        this.pool = (threads > 0)? Executors.newFixedThreadPool (threads, new NamedThreadFactory ("LifecycleExecutor")): null;
+        this.queue_timer = queue_timer;
+        this.task_timer = task_timer;
+    }
+
+    public int getBacklog ()
+    {
+        return (backlog.get ());
+    }
+
+    public long getFailures ()
+    {
+        return (failures.sum ());
+    }
+
+    private void run_work (Work work)
+    {
+        long start_time = System.nanoTime ();
+        queue_timer.record (start_time - work.queued_ns);
+
+        try
+        {
+            work.task.run ();
+        }
+        catch (Throwable t)
+        {
+            failures.increment ();
+            log.error ("Exception running lifecycle task", t);
+        }
+        finally
+        {
+            task_timer.recordSince (start_time);
+
+            if (backlog.decrementAndGet () == 0)
+            {
+                synchronized (backlog)
+                {
+                    // Someone may be waiting to close
+                    backlog.notifyAll ();
+                }
+            }
+        }
+    }
+
+    private void dispatch (Lane lane)
+    {
+        try
+        {
+            pool.execute (lane);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Shut down while still busy, the lane is drained right here
+            log.debug ("Lifecycle work for bundle {} running on the caller", lane.bundle_id);
+            lane.run ();
+        }
+    }
+
+    public void execute (long bundle_id, Runnable task)
+    {
+        Work work = new Work (task);
+        backlog.incrementAndGet ();
+
+        if (pool == null)
+        {
+            run_work (work);
+            return;
+        }
+
+        for (;;)
+        {
+            Lane lane = lanes.computeIfAbsent (bundle_id, Lane::new);
+
+            synchronized (lane)
+            {
+                if (lane.retired)
+                {
+                    // Drained and removed just now, get a fresh one
+                    continue;
+                }
+
+                lane.queue.add (work);
+
+                if (lane.running)
+                {
+                    return;
+                }
+                lane.running = true;
+            }
+            dispatch (lane);
+            return;
+        }
+    }
+
+    private boolean await_drained (long timeout_ms)
+        throws InterruptedException
+    {
+        long deadline = System.nanoTime () + TimeUnit.MILLISECONDS.toNanos (timeout_ms);
+
+        synchronized (backlog)
+        {
+            while (backlog.get () > 0)
+            {
+                long wait_ms = TimeUnit.NANOSECONDS.toMillis (deadline - System.nanoTime ());
+
+                if (wait_ms <= 0)
+                {
+                    return (false);
+                }
+                backlog.wait (wait_ms);
+            }
+        }
+        return (true);
+    }
+
+    public void close ()
+    {
+        if (pool != null)
+        {
+            try
+            {
+                // Let the queued work finish, within reason, while lanes can still be rescheduled
+                if (!await_drained (CLOSE_TIMEOUT_MS))
+                {
+                    log.warn ("Lifecycle executor stopped with {} tasks pending", backlog.get ());
+                    pool.shutdownNow ();
+                    return;
+                }
+                pool.shutdown ();
+                pool.awaitTermination (CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                pool.shutdownNow ();
+                Thread.currentThread ().interrupt ();
+            }
+        }
+    }
+
+    private static class Work
+    {
+        final Runnable task;
+        final long queued_ns = System.nanoTime ();
+
+        Work (Runnable task)
+        {
+            this.task = task;
+        }
+    }
+
+    private class Lane implements Runnable
+    {
+        final long bundle_id;
+        final Queue<Work> queue = new ArrayDeque<> ();
+        boolean running;
+        boolean retired;
+
+        Lane (long bundle_id)
+        {
+            this.bundle_id = bundle_id;
+        }
+
+        @Override
+        public void run ()
+        {
+            for (int i = 0; i < LANE_BATCH; i++)
+            {
+                Work work;
+
+                synchronized (this)
+                {
+                    if ((work = queue.poll ()) == null)
+                    {
+                        running = false;
+                        retired = true;
+                        lanes.remove (bundle_id, this);
+                        return;
+                    }
+                }
+                run_work (work);
+            }
+
+            // Still busy, back to the end of the line
+            dispatch (this);
+        }
+    }
+}
+
+// EOF
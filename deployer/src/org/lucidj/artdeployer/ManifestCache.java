@@ -0,0 +1,189 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.jar.Manifest;
+
+//
+// Bounded LRU of parsed manifests. Every entry is keyed by the canonical path
+// and carries the fingerprint (size, last modified, file key/inode) of the file
+// it was parsed from, so a lookup costs a single stat instead of a zip parse.
+//
+public class ManifestCache
+{
+    private final Map<String, CachedManifest> cache;
+    private final int max_entries;
+
+    private final LongAdder hits = new LongAdder ();
+    private final LongAdder misses = new LongAdder ();
+    private final LongAdder evictions = new LongAdder ();
+
+    public ManifestCache (int max_entries)
+    {
+        this.max_entries = max_entries;
+        this.cache = new LinkedHashMap<String, CachedManifest> (16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry (Map.Entry<String, CachedManifest> eldest)
+            {
+                if (size () > ManifestCache.this.max_entries)
+                {
+                    evictions.increment ();
+                    return (true);
+                }
+                return (false);
+            }
+        };
+    }
+
+    private static boolean same_fingerprint (CachedManifest entry, BasicFileAttributes attrs)
+    {
+        // fileKey() is the inode on most unixes, null where not available
+        return (entry.size == attrs.size ()
+            && entry.last_modified == attrs.lastModifiedTime ().toMillis ()
+            && (entry.file_key == null? attrs.fileKey () == null: entry.file_key.equals (attrs.fileKey ())));
+    }
+
+    //
+    // The fingerprint file is the one whose contents back the manifest: the jar itself,
+    // or META-INF/MANIFEST.MF inside an exploded bundle. Returns null when it's gone.
+    //
+    public static BasicFileAttributes stat (File fingerprint_file)
+    {
+        try
+        {
+            return (Files.readAttributes (fingerprint_file.toPath (), BasicFileAttributes.class));
+        }
+        catch (IOException e)
+        {
+            return (null);
+        }
+    }
+
+    //
+    // Returns a private copy of the cached manifest, or null if the file is unknown or
+    // has changed since it was parsed.
+    //
+    public Manifest get (String key, BasicFileAttributes attrs)
+    {
+        CachedManifest entry;
+
+        synchronized (cache)
+        {
+            entry = cache.get (key);
+
+            if (entry != null && !same_fingerprint (entry, attrs))
+            {
+                cache.remove (key);
+                entry = null;
+            }
+        }
+
+        if (entry == null)
+        {
+            misses.increment ();
+            return (null);
+        }
+        hits.increment ();
+
+        // Manifests are mutable, never hand out the cached instance
+        return (new Manifest (entry.manifest));
+    }
+
+    //
+    // The attributes must be the ones read _before_ parsing, so a file changing
+    // while being parsed never gets a stale manifest cached under the new fingerprint.
+    //
+    public void put (String key, BasicFileAttributes attrs, Manifest manifest)
+    {
+        if (max_entries <= 0 || manifest == null)
+        {
+            return;
+        }
+
+        CachedManifest entry = new CachedManifest (attrs.size (), attrs.lastModifiedTime ().toMillis (), attrs.fileKey (),
+            new Manifest (manifest));
+
+        synchronized (cache)
+        {
+            cache.put (key, entry);
+        }
+    }
+
+    public void clear ()
+    {
+        synchronized (cache)
+        {
+            cache.clear ();
+        }
+    }
+
+    public int size ()
+    {
+        synchronized (cache)
+        {
+            return (cache.size ());
+        }
+    }
+
+    public long getHitCount ()
+    {
+        return (hits.sum ());
+    }
+
+    public long getMissCount ()
+    {
+        return (misses.sum ());
+    }
+
+    public long getEvictionCount ()
+    {
+        return (evictions.sum ());
+    }
+
+    @Override
+    public String toString ()
+    {
+        return ("ManifestCache(size=" + size () + ", hits=" + getHitCount ()
+            + ", misses=" + getMissCount () + ", evictions=" + getEvictionCount () + ")");
+    }
+
+    private static class CachedManifest
+    {
+        final long size;
+        final long last_modified;
+        final Object file_key;
+        final Manifest manifest;
+
+        CachedManifest (long size, long last_modified, Object file_key, Manifest manifest)
+        {
+            this.size = size;
+            this.last_modified = last_modified;
+            this.file_key = file_key;
+            this.manifest = manifest;
+        }
+    }
+}
+
+// EOF
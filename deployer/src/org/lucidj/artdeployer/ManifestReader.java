@@ -0,0 +1,336 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+//
+// Reads META-INF/MANIFEST.MF from a jar without streaming through it. We locate
+// the end of central directory record at the tail of the file, walk the central
+// directory up to the manifest entry and read just that entry using positional
+// reads; for a regular bundle this touches a few KB no matter how big the jar is.
+// Anything unusual (zip64, prepended data we can't account for, odd compression
+// or corrupt entries) goes through JarInputStream, exactly as before.
+//
+public class ManifestReader
+{
+    private final static int EOCD_SIG = 0x06054b50;
+    private final static int EOCD_SIZE = 22;
+    private final static int CEN_SIG = 0x02014b50;
+    private final static int CEN_SIZE = 46;
+    private final static int LOC_SIG = 0x04034b50;
+    private final static int LOC_SIZE = 30;
+    private final static int MAX_COMMENT = 0xffff;
+
+    // Tail read first; only archives with long comments need a second look
+    private final static int TAIL_SIZE = 1024;
+    private final static int WINDOW_SIZE = 8 * 1024;
+
+    // Anything bigger is not a manifest we'd want to load on the fast path
+    private final static int MAX_MANIFEST_SIZE = 16 * 1024 * 1024;
+
+    private final static byte[] MANIFEST_NAME = "META-INF/MANIFEST.MF".getBytes ();
+    private final static byte[] NO_MANIFEST = new byte [0];
+
+    private final static ThreadLocal<Inflater> inflater = ThreadLocal.withInitial (() -> new Inflater (true));
+
+    private static void read_fully (FileChannel channel, ByteBuffer buffer, long position)
+        throws IOException
+    {
+        while (buffer.hasRemaining ())
+        {
+            int n = channel.read (buffer, position);
+
+            if (n < 0)
+            {
+                throw (new EOFException ());
+            }
+            position += n;
+        }
+        buffer.flip ();
+    }
+
+    private static ByteBuffer read_at (FileChannel channel, long position, int length)
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate (length).order (ByteOrder.LITTLE_ENDIAN);
+        read_fully (channel, buffer, position);
+        return (buffer);
+    }
+
+    private static int find_eocd (ByteBuffer tail)
+    {
+        // Scan backwards; the record must end exactly where its comment ends
+        for (int i = tail.limit () - EOCD_SIZE; i >= 0; i--)
+        {
+            if (tail.getInt (i) == EOCD_SIG
+                && i + EOCD_SIZE + (tail.getShort (i + 20) & 0xffff) == tail.limit ())
+            {
+                return (i);
+            }
+        }
+        return (-1);
+    }
+
+    private static boolean is_manifest_name (ByteBuffer cen, int offset, int length)
+    {
+        if (length != MANIFEST_NAME.length)
+        {
+            return (false);
+        }
+
+        for (int i = 0; i < length; i++)
+        {
+            // Same case-insensitive match JarInputStream does
+            int c = cen.get (offset + i);
+
+            if (c != MANIFEST_NAME [i] && (c | 0x20) != (MANIFEST_NAME [i] | 0x20))
+            {
+                return (false);
+            }
+        }
+        return (true);
+    }
+
+    private static byte[] read_entry (FileChannel channel, long base, ByteBuffer cen, int entry)
+        throws IOException
+    {
+        int method = cen.getShort (entry + 10) & 0xffff;
+        long compressed_size = cen.getInt (entry + 20) & 0xffffffffL;
+        long size = cen.getInt (entry + 24) & 0xffffffffL;
+        long loc_offset = base + (cen.getInt (entry + 42) & 0xffffffffL);
+
+        if ((method != 0 && method != 8)
+            || compressed_size > MAX_MANIFEST_SIZE || size > MAX_MANIFEST_SIZE
+            || (method == 0 && compressed_size != size))
+        {
+            // Zip64 sizes land here as well
+            return (null);
+        }
+
+        ByteBuffer loc = read_at (channel, loc_offset, LOC_SIZE);
+
+        if (loc.getInt (0) != LOC_SIG)
+        {
+            return (null);
+        }
+
+        long data_offset = loc_offset + LOC_SIZE + (loc.getShort (26) & 0xffff) + (loc.getShort (28) & 0xffff);
+        ByteBuffer data = read_at (channel, data_offset, (int)compressed_size);
+
+        if (method == 0)
+        {
+            return (data.array ());
+        }
+
+        byte[] inflated = new byte [(int)size];
+        Inflater inf = inflater.get ();
+
+        try
+        {
+            inf.setInput (data.array ());
+            int n = 0;
+
+            while (n < inflated.length && !inf.finished () && !inf.needsDictionary ())
+            {
+                int chunk = inf.inflate (inflated, n, inflated.length - n);
+
+                if (chunk == 0 && inf.needsInput ())
+                {
+                    break;
+                }
+                n += chunk;
+            }
+            return ((n == inflated.length)? inflated: null);
+        }
+        catch (DataFormatException e)
+        {
+            return (null);
+        }
+        finally
+        {
+            inf.reset ();
+        }
+    }
+
+    //
+    // Manifest bytes, NO_MANIFEST when the archive has none or null
+    // when this archive should be handled by JarInputStream instead.
+    //
+    private static byte[] read_manifest_bytes (FileChannel channel)
+        throws IOException
+    {
+        long file_size = channel.size ();
+
+        if (file_size < EOCD_SIZE)
+        {
+            return (null);
+        }
+
+        int tail_size = (int)Math.min (file_size, TAIL_SIZE);
+        ByteBuffer tail = read_at (channel, file_size - tail_size, tail_size);
+        int eocd = find_eocd (tail);
+
+        if (eocd < 0 && tail_size < file_size)
+        {
+            tail_size = (int)Math.min (file_size, EOCD_SIZE + MAX_COMMENT);
+            tail = read_at (channel, file_size - tail_size, tail_size);
+            eocd = find_eocd (tail);
+        }
+
+        if (eocd < 0)
+        {
+            return (null);
+        }
+
+        long eocd_position = file_size - tail_size + eocd;
+        int entries = tail.getShort (eocd + 10) & 0xffff;
+        long cen_size = tail.getInt (eocd + 12) & 0xffffffffL;
+        long cen_offset = tail.getInt (eocd + 16) & 0xffffffffL;
+        long cen_start = eocd_position - cen_size;
+
+        // Offsets are relative to the zip start, which may not be the file start
+        long base = cen_start - cen_offset;
+
+        if (entries == 0xffff || cen_size == 0xffffffffL || cen_offset == 0xffffffffL
+            || cen_start < 0 || base < 0)
+        {
+            return (null);
+        }
+
+        // Small archives have the whole central directory in the tail already
+        long tail_position = file_size - tail_size;
+        boolean cen_in_tail = cen_start >= tail_position;
+        ByteBuffer window = cen_in_tail? tail: null;
+        long window_position = cen_in_tail? tail_position: 0;
+        long position = cen_start;
+
+        for (int i = 0; i < entries; i++)
+        {
+            if (window == null || position + CEN_SIZE > window_position + window.limit ())
+            {
+                window_position = position;
+                window = read_at (channel, position, (int)Math.min (WINDOW_SIZE, eocd_position - position));
+            }
+
+            int entry = (int)(position - window_position);
+
+            if (entry + CEN_SIZE > window.limit () || window.getInt (entry) != CEN_SIG)
+            {
+                return (null);
+            }
+
+            int name_length = window.getShort (entry + 28) & 0xffff;
+            int entry_length = CEN_SIZE + name_length
+                + (window.getShort (entry + 30) & 0xffff) + (window.getShort (entry + 32) & 0xffff);
+
+            if (entry + CEN_SIZE + name_length > window.limit ())
+            {
+                // Entry straddles the window, read it again from its start
+                window_position = position;
+                window = read_at (channel, position,
+                    (int)Math.min (Math.max (WINDOW_SIZE, entry_length), eocd_position - position));
+                entry = 0;
+
+                if (CEN_SIZE + name_length > window.limit ())
+                {
+                    return (null);
+                }
+            }
+
+            if (is_manifest_name (window, entry + CEN_SIZE, name_length))
+            {
+                return (read_entry (channel, base, window, entry));
+            }
+            position += entry_length;
+        }
+        return (NO_MANIFEST);
+    }
+
+    private static Manifest read_with_stream (InputStream stream)
+        throws IOException
+    {
+        JarInputStream jar_stream = new JarInputStream (stream);
+        return (jar_stream.getManifest ());
+    }
+
+    //
+    // Manifest from a jar file, or null if it has none. Throws FileNotFoundException
+    // if the file doesn't exist, like reading it with JarInputStream would.
+    //
+    public static Manifest read (File file)
+        throws IOException
+    {
+        FileChannel channel;
+
+        try
+        {
+            channel = FileChannel.open (file.toPath (), StandardOpenOption.READ);
+        }
+        catch (NoSuchFileException e)
+        {
+            throw (new FileNotFoundException (file.getPath ()));
+        }
+
+        try
+        {
+            byte[] manifest_bytes;
+
+            try
+            {
+                manifest_bytes = read_manifest_bytes (channel);
+            }
+            catch (EOFException e)
+            {
+                // Offsets pointing past the end, let the stream reader judge it
+                manifest_bytes = null;
+            }
+
+            if (manifest_bytes == null)
+            {
+                channel.position (0);
+                return (read_with_stream (Channels.newInputStream (channel)));
+            }
+            else if (manifest_bytes == NO_MANIFEST)
+            {
+                return (null);
+            }
+            return (new Manifest (new ByteArrayInputStream (manifest_bytes)));
+        }
+        finally
+        {
+            channel.close ();
+        }
+    }
+}
+
+// EOF
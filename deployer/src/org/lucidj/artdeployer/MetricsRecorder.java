@@ -0,0 +1,37 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+//
+// Write side of the deployer instrumentation, only for our own components. Timers and
+// counters should be fetched once and kept, so recording itself is allocation free.
+//
+public interface MetricsRecorder
+{
+    Histogram getTimer       (String name);
+    LongAdder getCounter     (String name);
+    void      addGauge       (String name, LongSupplier gauge);
+    void      addHitRatio    (String name, LongSupplier hits, LongSupplier misses);
+    void      artifactSeen   (String location);
+    void      artifactActive (String location);
+    void      artifactForgotten (String location);
+}
+
+// EOF
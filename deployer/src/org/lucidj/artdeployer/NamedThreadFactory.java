@@ -0,0 +1,44 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//
+// Daemon threads named <name>-<n>, so our workers are easy to spot on a thread dump.
+//
+public class NamedThreadFactory implements ThreadFactory
+{
+    private final String name;
+    private final AtomicInteger counter = new AtomicInteger ();
+
+    public NamedThreadFactory (String name)
+    {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread (Runnable r)
+    {
+        Thread t = new Thread (r, name + "-" + counter.incrementAndGet ());
+        t.setDaemon (true);
+        return (t);
+    }
+}
+
+// EOF
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//
+// Write-behind for bundle properties. Writes for the same location are coalesced,
+// only the latest snapshot is written, and pending writes are flushed in batches
+// at most flush_interval_ms after being queued, when the batch fills up, or on close.
+// A removal is queued as a tombstone, so it coalesces with the writes before it.
+// Queueing and close() exclude each other, so whatever was accepted before close()
+// is in its final flush, and whatever comes after is refused.
+//
+public class PropertiesPersister
+{
+    private final static Logger log = LoggerFactory.getLogger (PropertiesPersister.class);
+
+    // Identity marker, never written
+    private final static Properties REMOVED = new Properties ();
+
+    private final PropertiesStore store;
+    private final long flush_interval_ms;
+    private final int batch_size;
+
+    private final Map<String, Properties> pending = new ConcurrentHashMap<> ();
+    private final AtomicBoolean flush_scheduled = new AtomicBoolean ();
+    private final AtomicBoolean flush_queued = new AtomicBoolean ();
+    private final ReadWriteLock close_lock = new ReentrantReadWriteLock ();
+    private final ScheduledExecutorService executor;
+    private boolean closed;
+
+    private final LongAdder queued_count = new LongAdder ();
+    private final LongAdder coalesced_count = new LongAdder ();
+    private final LongAdder write_count = new LongAdder ();
+    private final LongAdder failure_count = new LongAdder ();
+    private final LongAdder flush_count = new LongAdder ();
+    private final LongAccumulator max_depth = new LongAccumulator (Long::max, 0);
+
+    public PropertiesPersister (PropertiesStore store, long flush_interval_ms, int batch_size)
+    {
+        this.store = store;
+        this.flush_interval_ms = flush_interval_ms;
+        this.batch_size = batch_size;
+        this.executor = Executors.newSingleThreadScheduledExecutor (new NamedThreadFactory ("PropertiesPersister"));
+    }
+
+    private boolean persist (String location, Properties snapshot)
+    {
+        if ((snapshot == REMOVED)? store.remove (location): store.write (location, snapshot))
+        {
+            write_count.increment ();
+            return (true);
+        }
+        failure_count.increment ();
+        return (false);
+    }
+
+    private void schedule_flush (boolean now)
+    {
+        if (now)
+        {
+            if (flush_queued.compareAndSet (false, true))
+            {
+                // One immediate flush at a time, it takes whatever piles up meanwhile
+                executor.execute (this::flush);
+            }
+        }
+        else if (flush_scheduled.compareAndSet (false, true))
+        {
+            executor.schedule (this::flush, flush_interval_ms, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private boolean enqueue (String location, Properties snapshot)
+    {
+        close_lock.readLock ().lock ();
+
+        try
+        {
+            if (closed)
+            {
+                // The store is closed as well, nothing we can do
+                log.warn ("Properties of {} not stored, persister closed", location);
+                failure_count.increment ();
+                return (false);
+            }
+
+            if (pending.put (location, snapshot) != null)
+            {
+                coalesced_count.increment ();
+            }
+            queued_count.increment ();
+
+            int depth = pending.size ();
+            max_depth.accumulate (depth);
+            schedule_flush (depth >= batch_size);
+            return (true);
+        }
+        finally
+        {
+            close_lock.readLock ().unlock ();
+        }
+    }
+
+    public boolean store (String location, Properties properties)
+    {
+        // Hashtable.clone() is synchronized, so we get a consistent snapshot
+        return (enqueue (location, (Properties)properties.clone ()));
+    }
+
+    public boolean remove (String location)
+    {
+        return (enqueue (location, REMOVED));
+    }
+
+    public void flush ()
+    {
+        // Anything queued from now on needs a new flush
+        flush_scheduled.set (false);
+        flush_queued.set (false);
+
+        for (String location: pending.keySet ())
+        {
+            Properties snapshot = pending.remove (location);
+
+            if (snapshot != null)
+            {
+                persist (location, snapshot);
+            }
+        }
+
+        // One sync for the whole batch
+        store.sync ();
+        flush_count.increment ();
+    }
+
+    public void close ()
+    {
+        close_lock.writeLock ().lock ();
+
+        try
+        {
+            if (closed)
+            {
+                return;
+            }
+
+            // Nothing gets queued or scheduled past this point
+            closed = true;
+        }
+        finally
+        {
+            close_lock.writeLock ().unlock ();
+        }
+
+        executor.shutdown ();
+
+        try
+        {
+            executor.awaitTermination (10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ignore) {};
+
+        // Whatever was still queued (including delayed flushes cancelled by shutdown)
+        executor.shutdownNow ();
+        flush ();
+        store.close ();
+    }
+
+    public int getQueueDepth ()
+    {
+        return (pending.size ());
+    }
+
+    public long getMaxQueueDepth ()
+    {
+        return (max_depth.get ());
+    }
+
+    public long getQueuedCount ()
+    {
+        return (queued_count.sum ());
+    }
+
+    public long getCoalescedCount ()
+    {
+        return (coalesced_count.sum ());
+    }
+
+    public long getWriteCount ()
+    {
+        return (write_count.sum ());
+    }
+
+    public long getFailureCount ()
+    {
+        return (failure_count.sum ());
+    }
+
+    public long getFlushCount ()
+    {
+        return (flush_count.sum ());
+    }
+
+    @Override
+    public String toString ()
+    {
+        return ("PropertiesPersister(depth=" + getQueueDepth () + ", max_depth=" + getMaxQueueDepth ()
+            + ", queued=" + getQueuedCount () + ", coalesced=" + getCoalescedCount ()
+            + ", written=" + getWriteCount () + ", failed=" + getFailureCount () + ")");
+    }
+}
+
+// EOF
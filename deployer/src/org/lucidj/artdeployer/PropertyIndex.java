@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+//
+// Hash indexes (property value -> locations) for the declared property keys.
+// Properties objects are changed in place before being stored, so we keep the
+// last indexed value of every location to know where to remove it from.
+//
+public class PropertyIndex
+{
+    private final Map<String, Map<String, Set<String>>> locations_by_value = new ConcurrentHashMap<> ();
+    private final Map<String, Map<String, String>> value_by_location = new ConcurrentHashMap<> ();
+
+    public boolean isIndexed (String key)
+    {
+        return (locations_by_value.containsKey (key));
+    }
+
+    public synchronized boolean addKey (String key, Map<String, Properties> current_properties)
+    {
+        if (isIndexed (key))
+        {
+            return (false);
+        }
+
+        value_by_location.put (key, new ConcurrentHashMap<> ());
+        locations_by_value.put (key, new ConcurrentHashMap<> ());
+
+        for (Map.Entry<String, Properties> entry: current_properties.entrySet ())
+        {
+            update_key (key, entry.getKey (), entry.getValue ().getProperty (key));
+        }
+        return (true);
+    }
+
+    private void update_key (String key, String location, String new_value)
+    {
+        Map<String, String> values = value_by_location.get (key);
+        Map<String, Set<String>> locations = locations_by_value.get (key);
+        String old_value = (new_value == null)? values.remove (location): values.put (location, new_value);
+
+        if (new_value != null && new_value.equals (old_value))
+        {
+            // Nothing changed
+            return;
+        }
+
+        if (old_value != null)
+        {
+            Set<String> old_locations = locations.get (old_value);
+
+            if (old_locations != null)
+            {
+                old_locations.remove (location);
+
+                if (old_locations.isEmpty ())
+                {
+                    locations.remove (old_value);
+                }
+            }
+        }
+
+        if (new_value != null)
+        {
+            locations.computeIfAbsent (new_value, v -> ConcurrentHashMap.newKeySet ()).add (location);
+        }
+    }
+
+    public synchronized void update (String location, Properties properties)
+    {
+        for (String key: locations_by_value.keySet ())
+        {
+            update_key (key, location, properties == null? null: properties.getProperty (key));
+        }
+    }
+
+    public void remove (String location)
+    {
+        update (location, null);
+    }
+
+    //
+    // Returns the locations having key=value, or null if the key isn't indexed.
+    //
+    public Set<String> getLocations (String key, String value)
+    {
+        Map<String, Set<String>> locations = locations_by_value.get (key);
+
+        if (locations == null)
+        {
+            return (null);
+        }
+
+        Set<String> found = (value == null)? null: locations.get (value);
+        return (found == null? Collections.<String>emptySet (): new HashSet<> (found));
+    }
+}
+
+// EOF
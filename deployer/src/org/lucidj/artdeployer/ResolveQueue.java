@@ -0,0 +1,320 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.namespace.BundleNamespace;
+import org.osgi.framework.namespace.ExecutionEnvironmentNamespace;
+import org.osgi.framework.namespace.HostNamespace;
+import org.osgi.framework.namespace.IdentityNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.resource.Namespace;
+
+//
+// Bundles waiting to be resolved, indexed by what they require. Instead of poking
+// every INSTALLED bundle whenever something starts, a bundle is only retried when
+// a newly resolved bundle provides a capability it is waiting for.
+//
+// Requirements are indexed by key: "p:<package>", "b:<symbolic name>" or, for any
+// other namespace, "n:<namespace>" (coarser, but still far better than everything).
+//
+// Some bundles have pseudo-optional imports that could be better served if we could
+// delay as much as possible the bundle resolution. So bundles with optional imports
+// are only retried when no bundle without optional imports is waiting anymore.
+//
+public class ResolveQueue
+{
+    private final static Pattern PACKAGE_FILTER = Pattern.compile ("\\(" + PackageNamespace.PACKAGE_NAMESPACE + "=([^)]+)\\)");
+    private final static Pattern BUNDLE_FILTER = Pattern.compile ("\\(" + BundleNamespace.BUNDLE_NAMESPACE + "=([^)]+)\\)");
+
+    private final Map<Long, PendingBundle> pending = new LinkedHashMap<> ();
+    private final Map<String, Set<Long>> waiting_on = new HashMap<> ();
+    private final Set<Long> deferred = new HashSet<> ();
+    private int pending_without_optionals;
+
+    private static String get_filter_value (Pattern pattern, BundleRequirement req)
+    {
+        String filter = req.getDirectives ().get (Namespace.REQUIREMENT_FILTER_DIRECTIVE);
+
+        if (filter == null)
+        {
+            return (null);
+        }
+
+        Matcher matcher = pattern.matcher (filter);
+        return (matcher.find ()? matcher.group (1).trim (): null);
+    }
+
+    private static boolean is_optional (BundleRequirement req)
+    {
+        return (Namespace.RESOLUTION_OPTIONAL.equals (req.getDirectives ().get (Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE)));
+    }
+
+    private static String get_requirement_key (BundleRequirement req)
+    {
+        String namespace = req.getNamespace ();
+
+        if (PackageNamespace.PACKAGE_NAMESPACE.equals (namespace))
+        {
+            // Dynamic imports never block resolution
+            if (PackageNamespace.RESOLUTION_DYNAMIC.equals (req.getDirectives ().get (Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE)))
+            {
+                return (null);
+            }
+            String package_name = get_filter_value (PACKAGE_FILTER, req);
+            return (package_name == null? "n:" + namespace: "p:" + package_name);
+        }
+        else if (BundleNamespace.BUNDLE_NAMESPACE.equals (namespace))
+        {
+            String symbolic_name = get_filter_value (BUNDLE_FILTER, req);
+            return (symbolic_name == null? "n:" + namespace: "b:" + symbolic_name);
+        }
+        else if (ExecutionEnvironmentNamespace.EXECUTION_ENVIRONMENT_NAMESPACE.equals (namespace)
+            || HostNamespace.HOST_NAMESPACE.equals (namespace)
+            || IdentityNamespace.IDENTITY_NAMESPACE.equals (namespace))
+        {
+            // Provided by the framework itself or not a resolution dependency we can track
+            return (null);
+        }
+        return ("n:" + namespace);
+    }
+
+    private static Set<String> get_capability_keys (BundleRevision revision)
+    {
+        Set<String> keys = new HashSet<> ();
+
+        for (BundleCapability cap: revision.getDeclaredCapabilities (null))
+        {
+            String namespace = cap.getNamespace ();
+            Object value = cap.getAttributes ().get (namespace);
+            keys.add ("n:" + namespace);
+
+            if (PackageNamespace.PACKAGE_NAMESPACE.equals (namespace) && value != null)
+            {
+                keys.add ("p:" + value);
+            }
+            else if (BundleNamespace.BUNDLE_NAMESPACE.equals (namespace) && value != null)
+            {
+                keys.add ("b:" + value);
+            }
+        }
+        return (keys);
+    }
+
+    public synchronized void add (Bundle bundle)
+    {
+        // Updated bundles may come back with different requirements
+        remove (bundle);
+
+        BundleRevision revision = bundle.adapt (BundleRevision.class);
+
+        if (revision == null || bundle.getState () != Bundle.INSTALLED)
+        {
+            return;
+        }
+
+        PendingBundle pending_bundle = new PendingBundle (bundle);
+        List<BundleRequirement> requirements = revision.getDeclaredRequirements (null);
+
+        for (BundleRequirement req: (requirements == null)? new ArrayList<BundleRequirement> (): requirements)
+        {
+            String key = get_requirement_key (req);
+
+            if (key == null)
+            {
+                continue;
+            }
+
+            if (is_optional (req))
+            {
+                if (PackageNamespace.PACKAGE_NAMESPACE.equals (req.getNamespace ())
+                    || BundleNamespace.BUNDLE_NAMESPACE.equals (req.getNamespace ()))
+                {
+                    pending_bundle.have_optional = true;
+                }
+            }
+
+            // Optional requirements are indexed too, their providers are worth a retry
+            pending_bundle.keys.add (key);
+            waiting_on.computeIfAbsent (key, k -> new HashSet<> ()).add (bundle.getBundleId ());
+        }
+
+        pending.put (bundle.getBundleId (), pending_bundle);
+
+        if (!pending_bundle.have_optional)
+        {
+            pending_without_optionals++;
+        }
+    }
+
+    public synchronized void remove (Bundle bundle)
+    {
+        PendingBundle pending_bundle = pending.remove (bundle.getBundleId ());
+
+        if (pending_bundle == null)
+        {
+            return;
+        }
+
+        for (String key: pending_bundle.keys)
+        {
+            Set<Long> waiting = waiting_on.get (key);
+
+            if (waiting != null)
+            {
+                waiting.remove (bundle.getBundleId ());
+
+                if (waiting.isEmpty ())
+                {
+                    waiting_on.remove (key);
+                }
+            }
+        }
+
+        deferred.remove (bundle.getBundleId ());
+
+        if (!pending_bundle.have_optional)
+        {
+            pending_without_optionals--;
+        }
+    }
+
+    private List<Bundle> select_retries (Set<Long> candidate_ids)
+    {
+        List<Bundle> without_optionals = new ArrayList<> ();
+        List<Bundle> with_optionals = new ArrayList<> ();
+
+        for (Long id: candidate_ids)
+        {
+            PendingBundle pending_bundle = pending.get (id);
+
+            if (pending_bundle == null)
+            {
+                continue;
+            }
+
+            if (pending_bundle.bundle.getState () != Bundle.INSTALLED)
+            {
+                // We missed an event, it's not waiting anymore
+                remove (pending_bundle.bundle);
+            }
+            else if (pending_bundle.have_optional)
+            {
+                with_optionals.add (pending_bundle.bundle);
+            }
+            else
+            {
+                without_optionals.add (pending_bundle.bundle);
+            }
+        }
+
+        if (!without_optionals.isEmpty () || pending_without_optionals > 0)
+        {
+            // Optional ones wait until the rest settles down
+            for (Bundle bundle: with_optionals)
+            {
+                deferred.add (bundle.getBundleId ());
+            }
+            return (without_optionals);
+        }
+
+        // Nothing without optionals is waiting anymore, release everything deferred
+        for (Long id: deferred)
+        {
+            PendingBundle pending_bundle = pending.get (id);
+
+            if (pending_bundle != null && !with_optionals.contains (pending_bundle.bundle))
+            {
+                with_optionals.add (pending_bundle.bundle);
+            }
+        }
+        deferred.clear ();
+        return (with_optionals);
+    }
+
+    //
+    // Called when a bundle gets resolved. Returns the waiting bundles worth retrying.
+    //
+    public synchronized List<Bundle> wake (Bundle provider)
+    {
+        remove (provider);
+
+        BundleRevision revision = provider.adapt (BundleRevision.class);
+        Set<Long> candidate_ids = new HashSet<> ();
+
+        if (revision != null)
+        {
+            for (String key: get_capability_keys (revision))
+            {
+                Set<Long> waiting = waiting_on.get (key);
+
+                if (waiting != null)
+                {
+                    candidate_ids.addAll (waiting);
+                }
+            }
+        }
+
+        // The last bundle without optionals may have just left, so the deferred get their turn
+        if (pending_without_optionals == 0)
+        {
+            candidate_ids.addAll (deferred);
+        }
+        return (select_retries (candidate_ids));
+    }
+
+    //
+    // Everything worth a retry, honoring the optional imports heuristic. Used when
+    // resolution is resumed after a batch or when we can't tell what changed.
+    //
+    public synchronized List<Bundle> getRetryCandidates ()
+    {
+        return (select_retries (new HashSet<> (pending.keySet ())));
+    }
+
+    public synchronized int size ()
+    {
+        return (pending.size ());
+    }
+
+    private static class PendingBundle
+    {
+        final Bundle bundle;
+        final Set<String> keys = new HashSet<> ();
+        boolean have_optional;
+
+        PendingBundle (Bundle bundle)
+        {
+            this.bundle = bundle;
+        }
+    }
+}
+
+// EOF
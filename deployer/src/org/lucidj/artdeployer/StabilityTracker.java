@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//
+// Tells whether an artifact is done being written. A file is only considered after
+// its size and last modified time stayed the same for stable_ms, unless a marker file
+// named <artifact>.ready exists. Files are only stat'ed, never opened, while waiting.
+// On first sight the wait counts from the last modified time, so whatever was already
+// sitting there untouched (like the whole deploy directory at boot) is taken right away.
+//
+// Names used by copy tools for work in progress are ignored altogether, since the
+// final name only shows up with an atomic rename when the copy is complete.
+//
+public class StabilityTracker
+{
+    public final static String READY_MARKER = ".ready";
+
+    private final static String[] TEMPORARY_SUFFIXES =
+    {
+        READY_MARKER, ".tmp", ".temp", ".part", ".partial", ".crdownload", ".download", ".swp", "~"
+    };
+
+    private final long stable_ms;
+    private final Map<File, Observation> observations = new HashMap<> ();
+
+    public StabilityTracker (long stable_ms)
+    {
+        this.stable_ms = stable_ms;
+    }
+
+    public static boolean isIgnored (File file)
+    {
+        String name = file.getName ().toLowerCase ();
+
+        if (name.startsWith ("."))
+        {
+            // Hidden files, also the usual rsync and editor temporaries
+            return (true);
+        }
+
+        for (String suffix: TEMPORARY_SUFFIXES)
+        {
+            if (name.endsWith (suffix))
+            {
+                return (true);
+            }
+        }
+        return (false);
+    }
+
+    public synchronized boolean isStable (File file)
+    {
+        BasicFileAttributes attrs;
+
+        try
+        {
+            attrs = Files.readAttributes (file.toPath (), BasicFileAttributes.class);
+        }
+        catch (IOException e)
+        {
+            // Gone (or unreadable): nothing to wait for
+            observations.remove (file);
+            return (true);
+        }
+
+        long size = attrs.size ();
+        long last_modified = attrs.lastModifiedTime ().toMillis ();
+        long now = System.currentTimeMillis ();
+        Observation seen = observations.get (file);
+
+        if (seen == null)
+        {
+            // Unchanged since its last modification, as far as we can tell
+            seen = new Observation (size, last_modified, Math.min (now, last_modified));
+            observations.put (file, seen);
+        }
+        else if (seen.size != size || seen.last_modified != last_modified)
+        {
+            // Seen changing, the wait starts over
+            seen = new Observation (size, last_modified, now);
+            observations.put (file, seen);
+        }
+
+        if (!seen.stable)
+        {
+            seen.stable = stable_ms <= 0
+                || now - seen.since >= stable_ms
+                || new File (file.getParentFile (), file.getName () + READY_MARKER).exists ();
+        }
+        return (seen.stable);
+    }
+
+    //
+    // Files seen but not stable yet. These need to be checked again later, even if
+    // nothing else happens on the directory.
+    //
+    public synchronized List<File> getPending ()
+    {
+        List<File> pending = new ArrayList<> ();
+
+        for (Map.Entry<File, Observation> entry: observations.entrySet ())
+        {
+            if (!entry.getValue ().stable)
+            {
+                pending.add (entry.getKey ());
+            }
+        }
+        return (pending);
+    }
+
+    private static class Observation
+    {
+        final long size;
+        final long last_modified;
+        final long since;
+        boolean stable;
+
+        Observation (long size, long last_modified, long since)
+        {
+            this.size = size;
+            this.last_modified = last_modified;
+            this.since = since;
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+//
+// Starts resolved bundles off the event dispatch thread. Bundles resolved close
+// together are collected for settle_ms, then started by dependency level: every
+// bundle of a level is started concurrently, and a level only starts when all
+// its providers (from the previous levels) are done.
+//
+public class StartScheduler
+{
+    private final static Logger log = LoggerFactory.getLogger (StartScheduler.class);
+
+    private final long settle_ms;
+    private final ScheduledExecutorService dispatcher;
+    private final ExecutorService start_pool;
+
+    private final Map<Bundle, Boolean> pending = new LinkedHashMap<> ();
+    private boolean dispatch_scheduled;
+
+    public StartScheduler (int threads, long settle_ms)
+    {
+        this.settle_ms = settle_ms;
+        this.dispatcher = Executors.newSingleThreadScheduledExecutor (new NamedThreadFactory ("StartScheduler"));
+        this.start_pool = Executors.newFixedThreadPool (Math.max (1, threads), new NamedThreadFactory ("StartScheduler-worker"));
+    }
+
+    public synchronized void schedule (Bundle bundle, boolean transient_start)
+    {
+        pending.put (bundle, transient_start);
+
+        if (!dispatch_scheduled)
+        {
+            dispatch_scheduled = true;
+            dispatcher.schedule (this::dispatch, settle_ms, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static void startBundle (Bundle bundle, boolean transient_start)
+    {
+        if (bundle.getState () != Bundle.RESOLVED)
+        {
+            // Started, stopped or uninstalled meanwhile
+            return;
+        }
+
+        try
+        {
+            if (transient_start)
+            {
+                log.debug ("Bundle {} is resolved -- will start transient now", bundle);
+                bundle.start (Bundle.START_TRANSIENT);
+            }
+            else
+            {
+                log.debug ("Bundle {} is resolved -- will start now", bundle);
+                bundle.start ();
+            }
+        }
+        catch (Exception e)
+        {
+            log.info ("Exception starting bundle {}", bundle, e);
+        }
+    }
+
+    //
+    // Groups the bundles by dependency level, considering only wires among the bundles
+    // themselves. Bundles caught in cycles are all placed together in the last level.
+    //
+    public static List<List<Bundle>> getLevels (Collection<Bundle> bundles)
+    {
+        Map<Bundle, Set<Bundle>> providers = new HashMap<> ();
+        Map<Bundle, Set<Bundle>> dependents = new HashMap<> ();
+
+        for (Bundle bundle: bundles)
+        {
+            providers.put (bundle, new HashSet<> ());
+            dependents.put (bundle, new HashSet<> ());
+        }
+
+        for (Bundle bundle: bundles)
+        {
+            BundleWiring wiring = bundle.adapt (BundleWiring.class);
+            List<BundleWire> wires = (wiring == null)? null: wiring.getRequiredWires (null);
+
+            if (wires == null)
+            {
+                continue;
+            }
+
+            for (BundleWire wire: wires)
+            {
+                Bundle provider = wire.getProviderWiring ().getBundle ();
+
+                if (provider != bundle && providers.containsKey (provider))
+                {
+                    providers.get (bundle).add (provider);
+                    dependents.get (provider).add (bundle);
+                }
+            }
+        }
+
+        List<List<Bundle>> levels = new ArrayList<> ();
+        List<Bundle> current_level = new ArrayList<> ();
+
+        for (Bundle bundle: bundles)
+        {
+            if (providers.get (bundle).isEmpty ())
+            {
+                current_level.add (bundle);
+            }
+        }
+
+        int placed = 0;
+
+        while (!current_level.isEmpty ())
+        {
+            levels.add (current_level);
+            placed += current_level.size ();
+            List<Bundle> next_level = new ArrayList<> ();
+
+            for (Bundle provider: current_level)
+            {
+                for (Bundle dependent: dependents.get (provider))
+                {
+                    Set<Bundle> waiting = providers.get (dependent);
+                    waiting.remove (provider);
+
+                    if (waiting.isEmpty ())
+                    {
+                        next_level.add (dependent);
+                    }
+                }
+            }
+            current_level = next_level;
+        }
+
+        if (placed < bundles.size ())
+        {
+            List<Bundle> cyclic = new ArrayList<> ();
+
+            for (Bundle bundle: bundles)
+            {
+                if (!providers.get (bundle).isEmpty ())
+                {
+                    cyclic.add (bundle);
+                }
+            }
+            levels.add (cyclic);
+        }
+        return (levels);
+    }
+
+    //
+    // Starts the whole batch right away by dependency level, returning when done.
+    //
+    public void startLevels (Map<Bundle, Boolean> batch)
+        throws InterruptedException
+    {
+        long start_time = System.nanoTime ();
+        List<List<Bundle>> levels = getLevels (batch.keySet ());
+
+        for (List<Bundle> level: levels)
+        {
+            List<Callable<Void>> starts = new ArrayList<> (level.size ());
+
+            for (Bundle bundle: level)
+            {
+                boolean transient_start = batch.get (bundle);
+                starts.add (() -> { startBundle (bundle, transient_start); return (null); });
+            }
+
+            // Wait for the whole level before its dependents get started
+            start_pool.invokeAll (starts);
+        }
+
+        log.debug ("Started {} bundles in {} levels within {}ms", batch.size (), levels.size (),
+            TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - start_time));
+    }
+
+    private void dispatch ()
+    {
+        Map<Bundle, Boolean> batch;
+
+        synchronized (this)
+        {
+            batch = new LinkedHashMap<> (pending);
+            pending.clear ();
+            dispatch_scheduled = false;
+        }
+
+        try
+        {
+            startLevels (batch);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread ().interrupt ();
+        }
+    }
+
+    public void close ()
+    {
+        dispatcher.shutdownNow ();
+        start_pool.shutdownNow ();
+
+        try
+        {
+            start_pool.awaitTermination (10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ignore) {};
+    }
+}
+
+// EOF
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+
+//
+// Fingerprint of everything under an exploded bundle: each file's relative path,
+// size and last modified time folded into a single value, so an edit anywhere in
+// the tree shows up even though the top directory itself didn't change.
+//
+// Subdirectories are walked in parallel on a small ForkJoin pool of our own, so the
+// blocking filesystem calls never hold up users of the common pool. Directory listings are
+// cached and reused while the directory mtime stays the same (adding, removing or
+// renaming entries always changes it), which leaves a stat per file as the cost of
+// checking an unchanged tree. Symlinks are followed, like the framework reading the
+// bundle would, but a directory already on the path being walked is not entered again.
+//
+public class TreeFingerprint
+{
+    private final static Logger log = LoggerFactory.getLogger (TreeFingerprint.class);
+
+    // Listings taken this close to the last directory change may have missed entries
+    // added within the same mtime tick, so they are not trusted on the next pass
+    private final static long RACY_MS = 2000;
+
+    private final ForkJoinPool pool;
+    private final Map<Path, Listing> listings = new ConcurrentHashMap<> ();
+
+    public TreeFingerprint (int threads)
+    {
+        this.pool = new ForkJoinPool (Math.max (1, threads), pool ->
+        {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread (pool);
+            thread.setName ("TreeFingerprint-" + thread.getPoolIndex ());
+            return (thread);
+        }, null, false);
+    }
+
+    public void close ()
+    {
+        pool.shutdown ();
+    }
+
+    private static long mix (long h)
+    {
+        // SplitMix64 finalizer
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return (h ^ (h >>> 31));
+    }
+
+    private void forget_under (Path dir)
+    {
+        listings.keySet ().removeIf (path -> path.startsWith (dir));
+    }
+
+    private Listing get_listing (Path dir, BasicFileAttributes dir_attrs)
+        throws IOException
+    {
+        long dir_mtime = dir_attrs.lastModifiedTime ().toMillis ();
+        Listing listing = listings.get (dir);
+
+        if (listing != null && listing.dir_mtime == dir_mtime && !listing.racy)
+        {
+            return (listing);
+        }
+
+        long listed_ms = System.currentTimeMillis ();
+        List<String> files = new ArrayList<> ();
+        List<String> subdirs = new ArrayList<> ();
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream (dir))
+        {
+            for (Path entry: entries)
+            {
+                String name = entry.getFileName ().toString ();
+
+                if (Files.isDirectory (entry))
+                {
+                    subdirs.add (name);
+                }
+                else
+                {
+                    files.add (name);
+                }
+            }
+        }
+
+        Listing new_listing = new Listing (dir_mtime, listed_ms - dir_mtime < RACY_MS, files, subdirs);
+
+        if (listing != null)
+        {
+            // Drop whatever we knew about subdirectories that went away
+            for (String name: listing.subdirs)
+            {
+                if (Arrays.binarySearch (new_listing.subdirs, name) < 0)
+                {
+                    forget_under (dir.resolve (name));
+                }
+            }
+        }
+        listings.put (dir, new_listing);
+        return (new_listing);
+    }
+
+    //
+    // Fingerprint as "<files>:<bytes>:<hash>", or null if the directory can't be read.
+    //
+    public String getFingerprint (File root)
+    {
+        Path root_path = root.toPath ().toAbsolutePath ().normalize ();
+
+        try
+        {
+            Summary summary = pool.invoke (new WalkTask (root_path, "", Collections.emptySet ()));
+            return (summary.files + ":" + summary.bytes + ":" + Long.toHexString (summary.hash));
+        }
+        catch (Exception e)
+        {
+            // ForkJoin rethrows whatever the walk hit, possibly wrapped
+            log.warn ("Unable to fingerprint {}: {}", root, e.toString ());
+            forget (root);
+            return (null);
+        }
+    }
+
+    public void forget (File root)
+    {
+        forget_under (root.toPath ().toAbsolutePath ().normalize ());
+    }
+
+    public int size ()
+    {
+        return (listings.size ());
+    }
+
+    private static class Listing
+    {
+        final long dir_mtime;
+        final boolean racy;
+        final String[] files;
+        final String[] subdirs;
+
+        Listing (long dir_mtime, boolean racy, List<String> files, List<String> subdirs)
+        {
+            this.dir_mtime = dir_mtime;
+            this.racy = racy;
+            this.files = files.toArray (new String [0]);
+            this.subdirs = subdirs.toArray (new String [0]);
+
+            // Listing order is arbitrary, the fingerprint must not be
+            Arrays.sort (this.files);
+            Arrays.sort (this.subdirs);
+        }
+    }
+
+    private static class Summary
+    {
+        long files;
+        long bytes;
+        long hash;
+
+        void add (Summary other)
+        {
+            files += other.files;
+            bytes += other.bytes;
+            hash = hash * 31 + other.hash;
+        }
+    }
+
+    private class WalkTask extends RecursiveTask<Summary>
+    {
+        private final static long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final String relative_path;
+        private final Set<Object> ancestors;
+
+        WalkTask (Path dir, String relative_path, Set<Object> ancestors)
+        {
+            this.dir = dir;
+            this.relative_path = relative_path;
+            this.ancestors = ancestors;
+        }
+
+        @Override
+        protected Summary compute ()
+        {
+            try
+            {
+                return (walk ());
+            }
+            catch (IOException e)
+            {
+                throw (new IllegalStateException (e.toString (), e));
+            }
+        }
+
+        private Summary walk ()
+            throws IOException
+        {
+            BasicFileAttributes dir_attrs = Files.readAttributes (dir, BasicFileAttributes.class);
+            Object dir_key = (dir_attrs.fileKey () != null)? dir_attrs.fileKey (): dir.toRealPath ();
+            Summary summary = new Summary ();
+            summary.hash = mix (relative_path.hashCode ());
+
+            if (ancestors.contains (dir_key))
+            {
+                // Symlink back into the tree, counted as an entry but never entered
+                return (summary);
+            }
+
+            Set<Object> path_keys = new HashSet<> (ancestors);
+            path_keys.add (dir_key);
+            Listing listing = get_listing (dir, dir_attrs);
+            List<WalkTask> subtasks = new ArrayList<> (listing.subdirs.length);
+
+            for (String name: listing.subdirs)
+            {
+                WalkTask task = new WalkTask (dir.resolve (name), relative_path + name + "/", path_keys);
+                task.fork ();
+                subtasks.add (task);
+            }
+
+            for (String name: listing.files)
+            {
+                BasicFileAttributes attrs;
+
+                try
+                {
+                    attrs = Files.readAttributes (dir.resolve (name), BasicFileAttributes.class);
+                }
+                catch (NoSuchFileException e)
+                {
+                    // Deleted in the same second the listing was taken
+                    listings.remove (dir);
+                    continue;
+                }
+
+                long file_hash = mix ((relative_path + name).hashCode ());
+                file_hash = mix (file_hash ^ attrs.size ());
+                file_hash = mix (file_hash ^ attrs.lastModifiedTime ().toMillis ());
+                summary.files++;
+                summary.bytes += attrs.size ();
+                summary.hash = summary.hash * 31 + file_hash;
+            }
+
+            for (WalkTask task: subtasks)
+            {
+                summary.add (task.join ());
+            }
+            return (summary);
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer;
+
+import java.io.File;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+//
+// Artifacts that failed to install, with their retry schedule. Retries back off
+// exponentially (with jitter, so a directory full of broken files doesn't retry in
+// lockstep) up to max_delay_ms, but happen right away when the file changes.
+//
+// Only a summary of the error is kept, and at most max_entries artifacts are
+// remembered; the least recently touched ones are forgotten first.
+//
+public class TroubledArtifacts
+{
+    private final long base_delay_ms;
+    private final long max_delay_ms;
+    private final Map<String, Trouble> troubles;
+
+    public TroubledArtifacts (final int max_entries, long base_delay_ms, long max_delay_ms)
+    {
+        this.base_delay_ms = Math.max (1, base_delay_ms);
+        this.max_delay_ms = Math.max (this.base_delay_ms, max_delay_ms);
+        this.troubles = new LinkedHashMap<String, Trouble> (16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry (Map.Entry<String, Trouble> eldest)
+            {
+                return (size () > max_entries);
+            }
+        };
+    }
+
+    private static String get_fingerprint (String location)
+    {
+        try
+        {
+            File file = new File (new URI (location));
+            return (file.length () + ":" + file.lastModified ());
+        }
+        catch (Exception e)
+        {
+            return ("");
+        }
+    }
+
+    private static String summarize (Throwable error)
+    {
+        StringBuilder sb = new StringBuilder ();
+
+        // The message chain tells the story, the stack traces only take memory
+        for (Throwable t = error; t != null; t = (t.getCause () == t)? null: t.getCause ())
+        {
+            if (sb.length () > 0)
+            {
+                sb.append (" <- ");
+            }
+            sb.append ((t.getMessage () == null)? t.getClass ().getName (): t.getMessage ());
+        }
+        return (sb.toString ());
+    }
+
+    private long get_delay (int failures)
+    {
+        long delay = base_delay_ms << Math.min (failures - 1, 30);
+
+        if (delay <= 0 || delay > max_delay_ms)
+        {
+            delay = max_delay_ms;
+        }
+
+        // Equal jitter: at least half the delay, plus a random share of the other half
+        return (delay / 2 + ThreadLocalRandom.current ().nextLong (delay / 2 + 1));
+    }
+
+    public synchronized boolean shouldRetry (String location)
+    {
+        Trouble trouble = troubles.get (location);
+
+        if (trouble == null)
+        {
+            return (true);
+        }
+
+        if (!trouble.fingerprint.equals (get_fingerprint (location)))
+        {
+            // Someone fixed (or at least touched) it, try now
+            return (true);
+        }
+        return (System.currentTimeMillis () >= trouble.next_retry);
+    }
+
+    //
+    // Records a failure, returning true when it's news: the first failure for the
+    // artifact or a different error than last time.
+    //
+    public synchronized boolean failed (String location, Throwable error)
+    {
+        String summary = summarize (error);
+        String fingerprint = get_fingerprint (location);
+        Trouble trouble = troubles.get (location);
+        boolean news = (trouble == null || !trouble.summary.equals (summary));
+
+        // A changed file is a fresh start for the backoff
+        int failures = (trouble == null || !trouble.fingerprint.equals (fingerprint))? 1: trouble.failures + 1;
+        troubles.put (location, new Trouble (summary, fingerprint, failures,
+            System.currentTimeMillis () + get_delay (failures)));
+        return (news);
+    }
+
+    public synchronized void remove (String location)
+    {
+        troubles.remove (location);
+    }
+
+    public synchronized int size ()
+    {
+        return (troubles.size ());
+    }
+
+    private static class Trouble
+    {
+        final String summary;
+        final String fingerprint;
+        final int failures;
+        final long next_retry;
+
+        Trouble (String summary, String fingerprint, int failures, long next_retry)
+        {
+            this.summary = summary;
+            this.fingerprint = fingerprint;
+            this.failures = failures;
+            this.next_retry = next_retry;
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2018 NEOautus Ltd. (http://neoautus.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lucidj.artdeployer.tests;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lucidj.artdeployer.ManifestReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+//
+// ManifestReader against the stream reader it replaced, over generated jars covering
+// every layout the fast path handles or must hand over to JarInputStream. Point
+// -Dmanifest.corpus.dir at a directory of real jars to check those as well.
+//
+public class ManifestReaderTest
+{
+    private static Path work_dir;
+
+    @BeforeClass
+    public static void setUp ()
+        throws IOException
+    {
+        work_dir = Files.createTempDirectory ("manifest-reader-test");
+    }
+
+    @AfterClass
+    public static void tearDown ()
+        throws IOException
+    {
+        try (Stream<Path> paths = Files.walk (work_dir))
+        {
+            paths.sorted (Comparator.reverseOrder ()).map (Path::toFile).forEach (File::delete);
+        }
+    }
+
+    private static Manifest new_manifest (String name)
+    {
+        Manifest mf = new Manifest ();
+        Attributes attrs = mf.getMainAttributes ();
+        attrs.put (Attributes.Name.MANIFEST_VERSION, "1.0");
+        attrs.putValue ("Bundle-ManifestVersion", "2");
+        attrs.putValue ("Bundle-SymbolicName", "org.lucidj.test." + name);
+        attrs.putValue ("Bundle-Version", "1.0.0");
+        return (mf);
+    }
+
+    private static byte[] to_bytes (Manifest mf)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+        mf.write (bytes);
+        return (bytes.toByteArray ());
+    }
+
+    private static void put_entry (ZipOutputStream zip, String name, byte[] data, boolean stored)
+        throws IOException
+    {
+        ZipEntry entry = new ZipEntry (name);
+
+        if (stored)
+        {
+            CRC32 crc = new CRC32 ();
+            crc.update (data);
+            entry.setMethod (ZipEntry.STORED);
+            entry.setSize (data.length);
+            entry.setCompressedSize (data.length);
+            entry.setCrc (crc.getValue ());
+        }
+        zip.putNextEntry (entry);
+        zip.write (data);
+        zip.closeEntry ();
+    }
+
+    private static void put_payload (ZipOutputStream zip, int count)
+        throws IOException
+    {
+        for (int i = 0; i < count; i++)
+        {
+            put_entry (zip, "org/lucidj/test/payload" + i + ".txt", ("payload " + i).getBytes (), false);
+        }
+    }
+
+    private File new_jar (String name, Manifest mf, boolean stored, String comment, int payload)
+        throws IOException
+    {
+        File jar = work_dir.resolve (name + ".jar").toFile ();
+
+        try (ZipOutputStream zip = new ZipOutputStream (new FileOutputStream (jar)))
+        {
+            put_entry (zip, "META-INF/", new byte [0], true);
+            put_entry (zip, JarFile.MANIFEST_NAME, to_bytes (mf), stored);
+            put_payload (zip, payload);
+
+            if (comment != null)
+            {
+                zip.setComment (comment);
+            }
+        }
+        return (jar);
+    }
+
+    private static Manifest read_with_stream (File jar)
+        throws IOException
+    {
+        try (InputStream is = new FileInputStream (jar);
+             JarInputStream jar_stream = new JarInputStream (is))
+        {
+            return (jar_stream.getManifest ());
+        }
+    }
+
+    private static Manifest read_with_jar_file (File jar)
+        throws IOException
+    {
+        try (JarFile jar_file = new JarFile (jar))
+        {
+            return (jar_file.getManifest ());
+        }
+    }
+
+    private static void assertSameAsStream (File jar)
+        throws IOException
+    {
+        Manifest expected = read_with_stream (jar);
+        assertNotNull ("JarInputStream finds no manifest in " + jar, expected);
+        assertEquals (jar.getName (), expected, ManifestReader.read (jar));
+    }
+
+    @Test
+    public void storedManifest ()
+        throws IOException
+    {
+        assertSameAsStream (new_jar ("stored", new_manifest ("stored"), true, null, 10));
+    }
+
+    @Test
+    public void deflatedManifest ()
+        throws IOException
+    {
+        assertSameAsStream (new_jar ("deflated", new_manifest ("deflated"), false, null, 10));
+    }
+
+    @Test
+    public void largeManifest ()
+        throws IOException
+    {
+        Manifest mf = new_manifest ("large");
+
+        for (int i = 0; i < 2000; i++)
+        {
+            // Way past the tail read and the directory window
+            mf.getEntries ().put ("org/lucidj/test/Class" + i + ".class", new Attributes ());
+            mf.getAttributes ("org/lucidj/test/Class" + i + ".class").putValue ("SHA-256-Digest", "x" + i);
+        }
+        assertSameAsStream (new_jar ("large", mf, false, null, 1000));
+    }
+
+    @Test
+    public void archiveComment ()
+        throws IOException
+    {
+        StringBuilder comment = new StringBuilder ();
+
+        while (comment.length () < 30000)
+        {
+            // Longer than the first tail read
+            comment.append ("Archive comment. ");
+        }
+        assertSameAsStream (new_jar ("comment", new_manifest ("comment"), false, comment.toString (), 10));
+    }
+
+    @Test
+    public void prependedData ()
+        throws IOException
+    {
+        File plain = new_jar ("plain", new_manifest ("prepended"), false, null, 10);
+        File jar = work_dir.resolve ("prepended.jar").toFile ();
+
+        try (OutputStream os = new FileOutputStream (jar))
+        {
+            // A launcher script in front, like self-executing jars have
+            os.write ("#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes ());
+            Files.copy (plain.toPath (), os);
+        }
+
+        // The stream reader can't see past the prefix; the framework reads it like JarFile does
+        assertNull (read_with_stream (jar));
+        assertEquals (read_with_jar_file (jar), ManifestReader.read (jar));
+        assertNotNull (ManifestReader.read (jar));
+    }
+
+    @Test
+    public void manifestNotFirst ()
+        throws IOException
+    {
+        File jar = work_dir.resolve ("not-first.jar").toFile ();
+
+        try (ZipOutputStream zip = new ZipOutputStream (new FileOutputStream (jar)))
+        {
+            put_payload (zip, 10);
+            put_entry (zip, JarFile.MANIFEST_NAME, to_bytes (new_manifest ("not-first")), false);
+        }
+
+        // Same as above, only JarFile finds it
+        assertNull (read_with_stream (jar));
+        assertEquals (read_with_jar_file (jar), ManifestReader.read (jar));
+        assertNotNull (ManifestReader.read (jar));
+    }
+
+    @Test
+    public void noManifest ()
+        throws IOException
+    {
+        File jar = work_dir.resolve ("no-manifest.jar").toFile ();
+
+        try (ZipOutputStream zip = new ZipOutputStream (new FileOutputStream (jar)))
+        {
+            put_payload (zip, 10);
+        }
+        assertNull (read_with_stream (jar));
+        assertNull (ManifestReader.read (jar));
+    }
+
+    @Test
+    public void zip64 ()
+        throws IOException
+    {
+        // More entries than the plain end record can count
+        assertSameAsStream (new_jar ("zip64", new_manifest ("zip64"), false, null, 0x10000));
+    }
+
+    @Test
+    public void truncatedEndRecord ()
+        throws IOException
+    {
+        File jar = new_jar ("truncated", new_manifest ("truncated"), false, null, 10);
+
+        try (RandomAccessFile raf = new RandomAccessFile (jar, "rw"))
+        {
+            // Cut in the middle of the end of central directory record
+            raf.setLength (raf.length () - 10);
+        }
+        assertSameAsStream (jar);
+    }
+
+    @Test (expected = FileNotFoundException.class)
+    public void missingFile ()
+        throws IOException
+    {
+        ManifestReader.read (work_dir.resolve ("missing.jar").toFile ());
+    }
+
+    @Test
+    public void corpus ()
+        throws IOException
+    {
+        String corpus_dir = System.getProperty ("manifest.corpus.dir");
+
+        if (corpus_dir == null || corpus_dir.isEmpty ())
+        {
+            return;
+        }
+
+        try (Stream<Path> paths = Files.walk (new File (corpus_dir).toPath ()))
+        {
+            for (Path path: (Iterable<Path>)paths.filter (p -> p.toString ().endsWith (".jar"))::iterator)
+            {
+                File jar = path.toFile ();
+                Manifest from_stream = read_with_stream (jar);
+
+                // Where the stream reader finds nothing, JarFile has the last word
+                assertEquals (jar.getPath (), (from_stream != null)? from_stream: read_with_jar_file (jar),
+                    ManifestReader.read (jar));
+            }
+        }
+    }
+}
+
+// EOF